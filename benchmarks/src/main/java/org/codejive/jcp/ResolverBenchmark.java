@@ -0,0 +1,223 @@
+package org.codejive.jcp;
+
+import eu.maveniverse.maven.mima.context.ContextOverrides;
+import org.eclipse.aether.RepositoryException;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Measures jcp resolution of a binary tree of artifacts, all sharing the
+ * same parent POM, served from a file based repository fixture.
+ * "Cold" resolves into an empty local repository every time, "warm" into
+ * one that already contains everything. The classpath benchmarks measure
+ * what a command line invocation does after startup: "classpathCacheHit"
+ * parses the coordinates and finds them in the classpath cache, which is
+ * done without creating a MIMA context, while "classpathUncached" has to
+ * create one and resolve the warm local repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResolverBenchmark {
+    static final String GROUP_ID = "org.codejive.bench";
+
+    @Param({ "15", "127" })
+    public int graphSize;
+
+    Path root;
+    Path remoteRepo;
+    Path warmLocalRepo;
+    List<String> coords;
+    List<Artifact> artifacts;
+    Resolver warmResolver;
+    ClasspathCache classpathCache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, RepositoryException {
+        root = Files.createTempDirectory("jcp-bench");
+        remoteRepo = root.resolve("remote");
+        warmLocalRepo = root.resolve("local-warm");
+        writePom(GROUP_ID, "parent", "pom", Collections.emptyList());
+        for (int i = 0; i < graphSize; i++) {
+            List<String> deps = Stream.of(2 * i + 1, 2 * i + 2)
+                    .filter(d -> d < graphSize)
+                    .map(d -> "lib-" + d)
+                    .collect(Collectors.toList());
+            writePom(GROUP_ID, "lib-" + i, "jar", deps);
+            writeJar(GROUP_ID, "lib-" + i);
+        }
+        coords = Collections.singletonList(GROUP_ID + ":lib-0:1.0");
+        artifacts = Collections.singletonList(new DefaultArtifact(coords.get(0)));
+
+        warmResolver = new Resolver(overrides(warmLocalRepo), null, Resolver.DEFAULT_THREADS,
+                DescriptorCache.DEFAULT_MAX_ENTRIES);
+        List<ArtifactResult> results = warmResolver.resolve(artifacts);
+
+        classpathCache = new ClasspathCache(root.resolve("cpcache"));
+        classpathCache.put(ClasspathCache.key(artifacts), Resolver.toPaths(results));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        warmResolver.close();
+        deleteTree(root);
+    }
+
+    @State(Scope.Thread)
+    public static class ColdState {
+        Path localRepo;
+        Resolver resolver;
+
+        @Setup(Level.Invocation)
+        public void setup(ResolverBenchmark bench) throws IOException {
+            localRepo = Files.createTempDirectory(bench.root, "local-cold");
+            resolver = new Resolver(bench.overrides(localRepo), null, Resolver.DEFAULT_THREADS,
+                    DescriptorCache.DEFAULT_MAX_ENTRIES);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            resolver.close();
+            deleteTree(localRepo);
+        }
+    }
+
+    @Benchmark
+    public List<ArtifactResult> resolveCold(ColdState state) throws RepositoryException {
+        return state.resolver.resolve(artifacts);
+    }
+
+    @Benchmark
+    public List<ArtifactResult> resolveWarm() throws RepositoryException {
+        return warmResolver.resolve(artifacts);
+    }
+
+    @Benchmark
+    public String classpathCacheHit() {
+        List<Artifact> parsed = coords.stream()
+                .map(DefaultArtifact::new)
+                .collect(Collectors.toList());
+        return classpathCache.lookup(parsed);
+    }
+
+    @Benchmark
+    public String classpathUncached() throws RepositoryException {
+        List<Artifact> parsed = coords.stream()
+                .map(DefaultArtifact::new)
+                .collect(Collectors.toList());
+        try (Resolver resolver = new Resolver(overrides(warmLocalRepo), null, Resolver.DEFAULT_THREADS,
+                DescriptorCache.DEFAULT_MAX_ENTRIES)) {
+            return resolver.classpath(parsed, false);
+        }
+    }
+
+    ContextOverrides overrides(Path localRepo) {
+        RemoteRepository repo = new RemoteRepository.Builder("fixture", "default", remoteRepo.toUri().toString())
+                .build();
+        return ContextOverrides.create()
+                .withUserSettings(false)
+                .withLocalRepositoryOverride(localRepo)
+                .repositories(Collections.singletonList(repo))
+                .addRepositoriesOp(ContextOverrides.AddRepositoriesOp.REPLACE)
+                .build();
+    }
+
+    private void writePom(String groupId, String artifactId, String packaging, List<String> deps)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n")
+                .append("  <modelVersion>4.0.0</modelVersion>\n");
+        if (!artifactId.equals("parent")) {
+            sb.append("  <parent><groupId>").append(groupId)
+                    .append("</groupId><artifactId>parent</artifactId><version>1.0</version></parent>\n");
+        }
+        sb.append("  <groupId>").append(groupId).append("</groupId>\n")
+                .append("  <artifactId>").append(artifactId).append("</artifactId>\n")
+                .append("  <version>1.0</version>\n")
+                .append("  <packaging>").append(packaging).append("</packaging>\n")
+                .append("  <dependencies>\n");
+        for (String dep : deps) {
+            sb.append("    <dependency><groupId>").append(groupId)
+                    .append("</groupId><artifactId>").append(dep)
+                    .append("</artifactId><version>1.0</version></dependency>\n");
+        }
+        sb.append("  </dependencies>\n</project>\n");
+        writeWithChecksum(artifactPath(groupId, artifactId, "pom"), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeJar(String groupId, String artifactId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("META-INF/" + artifactId + ".txt"));
+            zip.write(artifactId.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        writeWithChecksum(artifactPath(groupId, artifactId, "jar"), bytes.toByteArray());
+    }
+
+    private Path artifactPath(String groupId, String artifactId, String ext) {
+        return remoteRepo.resolve(groupId.replace('.', '/'))
+                .resolve(artifactId)
+                .resolve("1.0")
+                .resolve(artifactId + "-1.0." + ext);
+    }
+
+    private static void writeWithChecksum(Path file, byte[] content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            try (OutputStream out = Files.newOutputStream(file.resolveSibling(file.getFileName() + ".sha1"))) {
+                out.write(hex.toString().getBytes(StandardCharsets.US_ASCII));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (Files.exists(dir)) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+    }
+}
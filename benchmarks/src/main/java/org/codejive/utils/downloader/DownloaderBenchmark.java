@@ -0,0 +1,103 @@
+package org.codejive.utils.downloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures <code>Downloader.downloadAndCacheFile()</code> against an embedded
+ * HTTP server for the three paths it can take: a fresh cache hit, a full
+ * download and a revalidation answered with "304 Not Modified".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DownloaderBenchmark {
+    static final String ETAG = "\"bench-etag\"";
+
+    @Param({ "16384", "1048576" })
+    public int fileSize;
+
+    HttpServer server;
+    Path cacheDir;
+    String fileURL;
+    Downloader hitDownloader;
+    Downloader missDownloader;
+    Downloader notModifiedDownloader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/file.bin", exchange -> serve(exchange, content));
+        server.start();
+        fileURL = "http://localhost:" + server.getAddress().getPort() + "/file.bin";
+
+        cacheDir = Files.createTempDirectory("downloader-bench");
+        hitDownloader = new Downloader(cacheDir.resolve("hit")).cacheEvictDuration(-1);
+        missDownloader = new Downloader(cacheDir.resolve("miss")).refresh(true);
+        notModifiedDownloader = new Downloader(cacheDir.resolve("304")).cacheEvictDuration(0);
+        // Make sure the cache entries exist for the hit and 304 cases
+        hitDownloader.downloadAndCacheFile(fileURL);
+        notModifiedDownloader.downloadAndCacheFile(fileURL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        Util.deletePath(cacheDir);
+    }
+
+    private static void serve(HttpExchange exchange, byte[] content) throws IOException {
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+        } else {
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+        }
+        exchange.close();
+    }
+
+    @Benchmark
+    public Path cacheHit() throws IOException {
+        return hitDownloader.downloadAndCacheFile(fileURL);
+    }
+
+    @Benchmark
+    public Path cacheMiss() throws IOException {
+        return missDownloader.downloadAndCacheFile(fileURL);
+    }
+
+    @Benchmark
+    public Path notModified() throws IOException {
+        return notModifiedDownloader.downloadAndCacheFile(fileURL);
+    }
+}
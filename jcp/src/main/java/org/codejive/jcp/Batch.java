@@ -0,0 +1,119 @@
+package org.codejive.jcp;
+
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves many independent sets of artifacts using a single {@link Resolver}.
+ * <p>
+ * The input has one set per line in the form <code>[label=]coord [coord ...]</code>,
+ * empty lines and lines starting with "#" are ignored. Lines without a label
+ * get their line number as label. For each set a line <code>label=classpath</code>
+ * is written to the output, in the same order as the input.
+ * <p>
+ * The sets get resolved concurrently and share the same repository session,
+ * so the artifact descriptors of dependencies they have in common are read
+ * and modeled only once, through the session's {@link DescriptorCache}. The
+ * dependency graphs themselves still get collected separately for each set.
+ */
+class Batch {
+    private final Resolver resolver;
+    private final int threads;
+
+    Batch(Resolver resolver, int threads) {
+        this.resolver = resolver;
+        this.threads = threads;
+    }
+
+    static class Entry {
+        final String label;
+        final List<Artifact> artifacts;
+
+        Entry(String label, List<Artifact> artifacts) {
+            this.label = label;
+            this.artifacts = artifacts;
+        }
+    }
+
+    static List<Entry> parse(BufferedReader in) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String line;
+        int lineNr = 0;
+        while ((line = in.readLine()) != null) {
+            lineNr++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String label = Integer.toString(lineNr);
+            int p = line.indexOf('=');
+            if (p >= 0) {
+                label = line.substring(0, p).trim();
+                line = line.substring(p + 1).trim();
+            }
+            List<Artifact> artifacts = Arrays.stream(line.split("\\s+"))
+                    .filter(s -> !s.isEmpty())
+                    .map(DefaultArtifact::new)
+                    .collect(Collectors.toList());
+            if (artifacts.isEmpty()) {
+                throw new IllegalArgumentException("No coordinates on line " + lineNr);
+            }
+            entries.add(new Entry(label, artifacts));
+        }
+        return entries;
+    }
+
+    /**
+     * Resolves all entries, writing their classpaths to <code>out</code>.
+     * Failures are reported on <code>err</code> and do not stop the
+     * processing of the remaining entries.
+     *
+     * @return the number of entries that failed to resolve
+     */
+    int run(List<Entry> entries, boolean useCache, PrintStream out, PrintStream err) {
+        // Kept separate from the resolver's own pool, whose threads
+        // are needed to do the actual downloading for these tasks
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "jcp-batch");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (Entry entry : entries) {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return resolver.classpath(entry.artifacts, useCache);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+            int failures = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                try {
+                    out.println(entry.label + "=" + futures.get(i).join());
+                } catch (CompletionException e) {
+                    err.println("Failed to resolve " + entry.label + ": " + e.getCause().getMessage());
+                    failures++;
+                }
+            }
+            return failures;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.codejive.jcp;
+
+import org.eclipse.aether.artifact.Artifact;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-disk cache of resolved classpaths. Entries are keyed by a hash of the
+ * requested coordinates and the Maven configuration they get resolved with,
+ * and they are only considered valid as long as every file they reference
+ * still exists. Keys don't depend on anything that requires a MIMA context,
+ * so cached classpaths can be returned without creating one.
+ */
+class ClasspathCache {
+    private final Path cacheDir;
+
+    ClasspathCache(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Returns the directory to use for the cache, which can be set using the
+     * "jcp.cache.dir" system property or the JCP_CACHE_DIR environment variable
+     * and defaults to ".jcp/cache" in the user's home directory.
+     */
+    static Path defaultCacheDir() {
+        String dir = System.getProperty("jcp.cache.dir", System.getenv("JCP_CACHE_DIR"));
+        if (dir != null && !dir.isEmpty()) {
+            return Paths.get(dir);
+        }
+        return Paths.get(System.getProperty("user.home"), ".jcp", "cache");
+    }
+
+    // Snapshots, version ranges and the LATEST and RELEASE meta versions can
+    // resolve to something different every time, so caching their result
+    // would hide updates
+    static boolean isCacheable(List<Artifact> artifacts) {
+        return artifacts.stream()
+                .noneMatch(a -> a.isSnapshot() || a.getVersion().matches(".*[\\[\\](),].*")
+                        || a.getVersion().equals("LATEST") || a.getVersion().equals("RELEASE"));
+    }
+
+    /**
+     * Returns the key for the classpath of the given artifacts. Instead of the
+     * remote repositories, which are only known once a MIMA context has been
+     * created, it uses what they get derived from: the contents of the Maven
+     * settings files and the system properties that determine where those
+     * and the local repository are.
+     */
+    static String key(List<Artifact> artifacts) {
+        String configuration = configuration();
+        if (configuration == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Artifact a : artifacts) {
+            sb.append(a).append('\n');
+        }
+        sb.append('\n').append(configuration);
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a hash of the Maven configuration artifacts get resolved with,
+     * or <code>null</code> if it couldn't be read. Two processes with the same
+     * hash resolve the same coordinates to the same classpath.
+     */
+    static String configuration() {
+        StringBuilder sb = new StringBuilder();
+        for (String property : new String[] { "maven.home", "maven.user.home", "maven.repo.local" }) {
+            sb.append(property).append('=').append(System.getProperty(property, "")).append('\n');
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (Path settings : settingsFiles()) {
+                md.update(settings.toString().getBytes(StandardCharsets.UTF_8));
+                if (Files.isRegularFile(settings)) {
+                    md.update(Files.readAllBytes(settings));
+                }
+            }
+            return hex(md.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            // An unreadable settings file means nothing can be cached
+            return null;
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // The user and global settings files, where the repositories, mirrors
+    // and proxies get configured
+    private static List<Path> settingsFiles() {
+        List<Path> files = new ArrayList<>();
+        String userHome = System.getProperty("maven.user.home");
+        files.add(userHome != null
+                ? Paths.get(userHome, "settings.xml")
+                : Paths.get(System.getProperty("user.home"), ".m2", "settings.xml"));
+        String mavenHome = System.getProperty("maven.home", System.getenv("MAVEN_HOME"));
+        if (mavenHome != null && !mavenHome.isEmpty()) {
+            files.add(Paths.get(mavenHome, "conf", "settings.xml"));
+        }
+        return files;
+    }
+
+    /**
+     * Returns the cached classpath for the given artifacts, or <code>null</code>
+     * when they aren't cacheable or there's no valid entry for them. This is
+     * all that is needed to return a cached classpath, no MIMA context is
+     * involved.
+     */
+    String lookup(List<Artifact> artifacts) {
+        if (!isCacheable(artifacts)) {
+            return null;
+        }
+        String key = key(artifacts);
+        return key != null ? get(key) : null;
+    }
+
+    /**
+     * Returns the cached classpath for the given key or <code>null</code> if
+     * there is no entry or if any of the files it references no longer exist.
+     */
+    String get(String key) {
+        Path entry = cacheDir.resolve(key + ".classpath");
+        if (!Files.isRegularFile(entry)) {
+            return null;
+        }
+        try {
+            List<String> paths = Files.readAllLines(entry, StandardCharsets.UTF_8);
+            for (String p : paths) {
+                if (!Files.isRegularFile(Paths.get(p))) {
+                    return null;
+                }
+            }
+            return String.join(File.pathSeparator, paths);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the given classpath in the cache. Failures are ignored, the
+     * cache is only an optimization.
+     */
+    void put(String key, List<Path> classpath) {
+        try {
+            Files.createDirectories(cacheDir);
+            Path tmp = Files.createTempFile(cacheDir, key, ".tmp");
+            try {
+                StringBuilder sb = new StringBuilder();
+                for (Path p : classpath) {
+                    sb.append(p).append('\n');
+                }
+                Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, cacheDir.resolve(key + ".classpath"), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.codejive.jcp;
+
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a single {@link Resolver} alive and answers resolve requests
+ * arriving on a Unix domain socket.
+ * <p>
+ * The protocol is line based: the client sends the coordinates and the
+ * "--no-cache" option it was given, plus a "--config=HASH" line with the
+ * {@link ClasspathCache#configuration() hash of its Maven configuration},
+ * one per line, followed by an empty line. The daemon answers with a status
+ * line, either "OK" or "ERROR", followed by the classpath or the error
+ * message respectively, or just "MISMATCH" when its own Maven configuration
+ * is different, in which case the client has to resolve in-process.
+ */
+class Daemon {
+    static final String OK = "OK";
+    static final String ERROR = "ERROR";
+    static final String MISMATCH = "MISMATCH";
+
+    private final Path socketPath;
+    private final boolean stats;
+    // The configuration the resolver got created with
+    private final String configuration = ClasspathCache.configuration();
+
+    /**
+     * Creates a new daemon
+     *
+     * @param socketPath the path of the socket to listen on
+     * @param stats when true the descriptor cache statistics get printed after each request
+     */
+    Daemon(Path socketPath, boolean stats) {
+        this.socketPath = socketPath;
+        this.stats = stats;
+    }
+
+    /**
+     * Returns the path of the socket to use, which can be set using the
+     * "jcp.daemon.socket" system property or the JCP_DAEMON_SOCKET environment
+     * variable and defaults to ".jcp/jcp.sock" in the user's home directory.
+     */
+    static Path defaultSocketPath() {
+        String path = System.getProperty("jcp.daemon.socket", System.getenv("JCP_DAEMON_SOCKET"));
+        if (path != null && !path.isEmpty()) {
+            return Paths.get(path);
+        }
+        return Paths.get(System.getProperty("user.home"), ".jcp", "jcp.sock");
+    }
+
+    void run(Resolver resolver) throws IOException {
+        if (DaemonClient.isRunning(socketPath)) {
+            throw new IllegalStateException("A daemon is already listening on " + socketPath);
+        }
+        Files.createDirectories(socketPath.toAbsolutePath().getParent());
+        Files.deleteIfExists(socketPath);
+
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "jcp-daemon-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            java.lang.Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socketPath);
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }));
+            while (true) {
+                SocketChannel client = server.accept();
+                executor.execute(() -> handle(client, resolver));
+            }
+        } finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    private void handle(SocketChannel client, Resolver resolver) {
+        try (SocketChannel ch = client;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8)) {
+            List<String> args = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                args.add(line);
+            }
+            if (args.isEmpty()) {
+                // Just a liveness probe
+                return;
+            }
+            try {
+                boolean useCache = true;
+                String clientConfiguration = null;
+                List<Artifact> artifacts = new ArrayList<>();
+                for (String arg : args) {
+                    if (arg.equals("--no-cache")) {
+                        useCache = false;
+                    } else if (arg.startsWith("--config=")) {
+                        clientConfiguration = arg.substring("--config=".length());
+                    } else if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unsupported option: " + arg);
+                    } else {
+                        artifacts.add(new DefaultArtifact(arg));
+                    }
+                }
+                if (configuration == null || !configuration.equals(clientConfiguration)) {
+                    out.write(MISMATCH + "\n");
+                    return;
+                }
+                String classpath = resolver.classpath(artifacts, useCache);
+                out.write(OK + "\n" + classpath);
+                if (stats) {
+                    System.err.println(resolver.descriptorCache().stats());
+                }
+            } catch (Exception e) {
+                out.write(ERROR + "\n" + e.getMessage());
+            }
+        } catch (Exception e) {
+            // Nothing we can do if the client went away
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.codejive.jcp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Thin client for talking to a running {@link Daemon}.
+ */
+class DaemonClient {
+
+    /**
+     * Sends the given arguments to the daemon listening on the given socket
+     * and returns the resulting classpath, or <code>null</code> if no daemon
+     * could be reached or if its Maven configuration differs from ours, in
+     * which case the caller should resolve in-process.
+     *
+     * @throws RuntimeException if the daemon reported a failure
+     */
+    static String resolve(Path socketPath, List<String> args) {
+        String configuration = ClasspathCache.configuration();
+        if (!Files.exists(socketPath) || configuration == null) {
+            return null;
+        }
+        try (SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            ch.connect(UnixDomainSocketAddress.of(socketPath));
+            Writer out = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8);
+            for (String arg : args) {
+                out.write(arg + "\n");
+            }
+            out.write("--config=" + configuration + "\n");
+            out.write("\n");
+            out.flush();
+            ch.shutdownOutput();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+            String status = in.readLine();
+            String payload = in.lines().collect(Collectors.joining("\n"));
+            if (Daemon.OK.equals(status)) {
+                return payload;
+            } else if (Daemon.ERROR.equals(status)) {
+                throw new RuntimeException(payload);
+            } else {
+                // A daemon with a different configuration, or not a reply we
+                // understand, don't trust the daemon
+                return null;
+            }
+        } catch (IOException e) {
+            // Stale socket or daemon going down, just resolve ourselves
+            return null;
+        }
+    }
+
+    static boolean isRunning(Path socketPath) {
+        if (!Files.exists(socketPath)) {
+            return false;
+        }
+        try (SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            ch.connect(UnixDomainSocketAddress.of(socketPath));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
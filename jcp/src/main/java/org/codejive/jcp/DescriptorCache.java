@@ -0,0 +1,171 @@
+package org.codejive.jcp;
+
+import org.eclipse.aether.RepositoryCache;
+import org.eclipse.aether.RepositorySystemSession;
+
+import java.lang.reflect.Proxy;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>RepositoryCache</code> that bounds the artifact descriptors (the
+ * modeled POMs) kept by the dependency collector using LRU eviction, while
+ * keeping track of how often a descriptor could be reused.
+ * <p>
+ * The collector looks up its descriptor pool in the session cache under a
+ * well-known key before creating its own, so by handing it our bounded map
+ * all collections done with the same session share the same descriptors.
+ * Older resolvers use the map as-is, newer ones expect an instance of their
+ * package-private <code>InternPool</code> interface, which they get in the
+ * form of a proxy on top of the map. All other keys are simply delegated to
+ * the given cache.
+ */
+class DescriptorCache implements RepositoryCache {
+    // Key used by the resolver's DataPool for its descriptor map
+    static final String DESCRIPTORS_KEY = "org.eclipse.aether.internal.impl.collect.DataPool$Descriptors";
+    // The type of the descriptor pool since Maven Resolver 1.9
+    static final String INTERN_POOL_CLASS = "org.eclipse.aether.internal.impl.collect.DataPool$InternPool";
+
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final RepositoryCache delegate;
+    private final Map<Object, Object> entries = new ConcurrentHashMap<>();
+    private final LruMap descriptors;
+    // What the collector gets handed for the descriptors key
+    private final Object pool;
+
+    DescriptorCache(RepositoryCache delegate, int maxEntries) {
+        this.delegate = delegate;
+        this.descriptors = new LruMap(maxEntries);
+        this.pool = descriptorPool(descriptors);
+    }
+
+    private static Object descriptorPool(LruMap descriptors) {
+        Class<?> poolClass;
+        try {
+            poolClass = Class.forName(INTERN_POOL_CLASS, false, RepositoryCache.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return descriptors;
+        }
+        return Proxy.newProxyInstance(poolClass.getClassLoader(), new Class<?>[] { poolClass },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "get":
+                        return descriptors.get(args[0]);
+                    case "intern":
+                        return descriptors.intern(args[0], args[1]);
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "DescriptorCache" + descriptors;
+                    default:
+                        throw new UnsupportedOperationException(method.toString());
+                    }
+                });
+    }
+
+    @Override
+    public void put(RepositorySystemSession session, Object key, Object data) {
+        if (DESCRIPTORS_KEY.equals(key)) {
+            // We always hand out our own map, so there's nothing to store
+            return;
+        }
+        if (delegate != null) {
+            delegate.put(session, key, data);
+        } else if (data != null) {
+            entries.put(key, data);
+        } else {
+            entries.remove(key);
+        }
+    }
+
+    @Override
+    public Object get(RepositorySystemSession session, Object key) {
+        if (DESCRIPTORS_KEY.equals(key)) {
+            return pool;
+        }
+        return delegate != null ? delegate.get(session, key) : entries.get(key);
+    }
+
+    long hits() {
+        return descriptors.hits.get();
+    }
+
+    long misses() {
+        return descriptors.misses.get();
+    }
+
+    int size() {
+        return descriptors.size();
+    }
+
+    String stats() {
+        return String.format("Descriptor cache: %d hits, %d misses, %d/%d entries",
+                hits(), misses(), size(), descriptors.maxEntries);
+    }
+
+    private static class LruMap extends AbstractMap<Object, Object> {
+        private final int maxEntries;
+        private final Map<Object, Object> map;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        LruMap(int maxEntries) {
+            this.maxEntries = maxEntries;
+            this.map = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                    return size() > LruMap.this.maxEntries;
+                }
+            };
+        }
+
+        @Override
+        public synchronized Object get(Object key) {
+            Object value = map.get(key);
+            if (value != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+            return value;
+        }
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            return map.put(key, value);
+        }
+
+        // Returns the value already present for the key, or adds the given one
+        synchronized Object intern(Object key, Object value) {
+            Object existing = map.putIfAbsent(key, value);
+            return existing != null ? existing : value;
+        }
+
+        @Override
+        public synchronized Object remove(Object key) {
+            return map.remove(key);
+        }
+
+        @Override
+        public synchronized int size() {
+            return map.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            map.clear();
+        }
+
+        @Override
+        public synchronized Set<Entry<Object, Object>> entrySet() {
+            return new LinkedHashMap<>(map).entrySet();
+        }
+    }
+}
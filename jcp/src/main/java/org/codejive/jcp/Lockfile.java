@@ -0,0 +1,102 @@
+package org.codejive.jcp;
+
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.resolution.ArtifactResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A lockfile lists the fully resolved set of artifacts of a classpath, one
+ * per line, in the form <code>grp:art:ext[:cls]:ver repository-id sha256</code>.
+ * Empty lines and lines starting with "#" are ignored.
+ */
+class Lockfile {
+
+    static class Entry {
+        final Artifact artifact;
+        final String repositoryId;
+        final String sha256;
+
+        Entry(Artifact artifact, String repositoryId, String sha256) {
+            this.artifact = artifact;
+            this.repositoryId = repositoryId;
+            this.sha256 = sha256;
+        }
+    }
+
+    static List<Entry> read(Path lockfile) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        int lineNr = 0;
+        for (String line : Files.readAllLines(lockfile, StandardCharsets.UTF_8)) {
+            lineNr++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3) {
+                throw new IOException("Invalid lockfile entry on line " + lineNr + " of " + lockfile);
+            }
+            entries.add(new Entry(new DefaultArtifact(parts[0]), parts[1], parts[2]));
+        }
+        return entries;
+    }
+
+    /**
+     * Writes a lockfile for the given results
+     *
+     * @param lockfile the file to write
+     * @param results the resolved artifacts
+     * @param origins returns the id of the remote repository each result's
+     *                artifact came from, or <code>null</code> if unknown
+     */
+    static void write(Path lockfile, List<ArtifactResult> results, Function<ArtifactResult, String> origins)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# Generated by jcp, do not edit\n");
+        for (ArtifactResult ar : results) {
+            Artifact a = ar.getArtifact();
+            String repoId = origins.apply(ar);
+            if (repoId == null) {
+                repoId = "unknown";
+            }
+            sb.append(a).append(' ')
+                    .append(repoId).append(' ')
+                    .append(sha256(a.getFile().toPath()))
+                    .append('\n');
+        }
+        Path parent = lockfile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(lockfile, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String sha256(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,52 +1,210 @@
 package org.codejive.jcp;
 
-import eu.maveniverse.maven.mima.context.Context;
 import eu.maveniverse.maven.mima.context.ContextOverrides;
-import eu.maveniverse.maven.mima.context.Runtime;
-import eu.maveniverse.maven.mima.context.Runtimes;
+import org.eclipse.aether.RepositoryException;
+import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.artifact.DefaultArtifact;
-import org.eclipse.aether.collection.CollectRequest;
-import org.eclipse.aether.graph.Dependency;
 import org.eclipse.aether.resolution.ArtifactResult;
-import org.eclipse.aether.resolution.DependencyRequest;
-import org.eclipse.aether.resolution.DependencyResolutionException;
-import org.eclipse.aether.resolution.DependencyResult;
-import org.eclipse.aether.util.artifact.JavaScopes;
 
-import java.io.File;
-import java.util.Arrays;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class Main {
 
     public static void main(String... args) {
-        if (args.length == 0) {
-            throw new IllegalArgumentException("grp:art[:ext[:cls]]:ver [grp:art[:ext[:cls]]:ver ...]");
+        boolean useCache = true;
+        boolean daemon = false;
+        boolean useDaemon = true;
+        int threads = Resolver.DEFAULT_THREADS;
+        int maxDescriptors = DescriptorCache.DEFAULT_MAX_ENTRIES;
+        boolean stats = false;
+        String batch = null;
+        String lockfile = null;
+        String writeLockfile = null;
+        boolean offlineFirst = false;
+        String timingFormat = null;
+        // Set for options that configure the resolver itself
+        boolean resolverOptions = false;
+        List<String> coords = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--no-cache")) {
+                useCache = false;
+            } else if (arg.equals("--daemon")) {
+                daemon = true;
+            } else if (arg.equals("--no-daemon")) {
+                useDaemon = false;
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+                if (threads < 1) {
+                    throw new IllegalArgumentException("Invalid number of threads: " + threads);
+                }
+                resolverOptions = true;
+            } else if (arg.startsWith("--descriptor-cache-size=")) {
+                maxDescriptors = Integer.parseInt(arg.substring("--descriptor-cache-size=".length()));
+                resolverOptions = true;
+            } else if (arg.equals("--stats")) {
+                stats = true;
+                resolverOptions = true;
+            } else if (arg.equals("--timing")) {
+                timingFormat = "text";
+            } else if (arg.startsWith("--timing=")) {
+                timingFormat = arg.substring("--timing=".length());
+                if (!timingFormat.equals("text") && !timingFormat.equals("json")) {
+                    throw new IllegalArgumentException("Invalid timing format: " + timingFormat);
+                }
+            } else if (arg.equals("--offline-first")) {
+                offlineFirst = true;
+                resolverOptions = true;
+            } else if (arg.startsWith("--lock=")) {
+                lockfile = arg.substring("--lock=".length());
+            } else if (arg.startsWith("--write-lock=")) {
+                writeLockfile = arg.substring("--write-lock=".length());
+            } else if (arg.startsWith("--batch=")) {
+                batch = arg.substring("--batch=".length());
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else {
+                coords.add(arg);
+            }
         }
-        List<Dependency> dependencies = Arrays.stream(args)
+        ContextOverrides overrides = ContextOverrides.create().offline(offlineFirst).build();
+        ClasspathCache cache = new ClasspathCache(ClasspathCache.defaultCacheDir());
+        Timing timing = timingFormat != null ? new Timing() : null;
+        Path socketPath = Daemon.defaultSocketPath();
+
+        if (daemon) {
+            if (timing != null) {
+                throw new IllegalArgumentException("--timing can't be used with --daemon");
+            }
+            // It would make every client's resolution offline-first
+            if (offlineFirst) {
+                throw new IllegalArgumentException("--offline-first can't be used with --daemon");
+            }
+            try (Resolver resolver = createResolver(overrides, cache, threads, maxDescriptors, offlineFirst, timing)) {
+                new Daemon(socketPath, stats).run(resolver);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
+        if (batch != null) {
+            int failures;
+            try (BufferedReader in = batch.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                    : Files.newBufferedReader(Paths.get(batch));
+                 Resolver resolver = createResolver(overrides, cache, threads, maxDescriptors, offlineFirst, timing)) {
+                failures = new Batch(resolver, threads).run(Batch.parse(in), useCache, System.out, System.err);
+                if (stats) {
+                    System.err.println(resolver.descriptorCache().stats());
+                }
+                printTiming(timing, timingFormat);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (failures > 0) {
+                throw new RuntimeException(failures + " batch entries failed to resolve");
+            }
+            return;
+        }
+
+        if (lockfile != null) {
+            if (!coords.isEmpty()) {
+                throw new IllegalArgumentException("--lock can't be combined with coordinates");
+            }
+            try (Resolver resolver = createResolver(overrides, cache, threads, maxDescriptors, offlineFirst, timing)) {
+                List<Path> paths = resolver.resolveLocked(Lockfile.read(Paths.get(lockfile)));
+                System.out.print(Resolver.toClasspath(paths));
+                printTiming(timing, timingFormat);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (RepositoryException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        if (coords.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "[--no-cache] [--daemon|--no-daemon] [--threads=N] [--descriptor-cache-size=N] [--stats] "
+                            + "[--timing[=text|json]] [--offline-first] "
+                            + "[--batch=FILE|-] [--lock=FILE] [--write-lock=FILE] "
+                            + "grp:art[:ext[:cls]]:ver [grp:art[:ext[:cls]]:ver ...]");
+        }
+        List<Artifact> artifacts = coords.stream()
                 .map(DefaultArtifact::new)
-                .map(a -> new Dependency(a, JavaScopes.RUNTIME))
                 .collect(Collectors.toList());
-        ContextOverrides overrides = ContextOverrides.create().build();
-        Runtime runtime = Runtimes.INSTANCE.getRuntime();
-        try (Context context = runtime.create(overrides)) {
-            CollectRequest collectRequest = new CollectRequest()
-                    .setDependencies(dependencies)
-                    .setRepositories(context.remoteRepositories());
-            DependencyRequest dependencyRequest = new DependencyRequest()
-                    .setCollectRequest(collectRequest);
-
-            DependencyResult dependencyResult = context
-                    .repositorySystem()
-                    .resolveDependencies(context.repositorySystemSession(), dependencyRequest);
-            List<ArtifactResult> artifacts = dependencyResult.getArtifactResults();
-            String classpath = artifacts.stream()
-                    .map(ar -> ar.getArtifact().getFile().toPath().toString())
-                    .collect(Collectors.joining(File.pathSeparator));
-            System.out.print(classpath);
-        } catch (DependencyResolutionException e) {
+        // A cached classpath doesn't need a MIMA context, so it gets looked up
+        // before creating one, unless something was asked for that needs one
+        if (useCache && writeLockfile == null && timing == null && !stats) {
+            String classpath = cache.lookup(artifacts);
+            if (classpath != null) {
+                System.out.print(classpath);
+                return;
+            }
+        }
+
+        // Lockfiles, timing reports and options for the resolver need an
+        // in-process resolution, the daemon's resolver was configured when
+        // the daemon got started
+        if (useDaemon && !resolverOptions && writeLockfile == null && timing == null) {
+            List<String> request = new ArrayList<>(coords);
+            if (!useCache) {
+                request.add("--no-cache");
+            }
+            String classpath = DaemonClient.resolve(socketPath, request);
+            if (classpath != null) {
+                System.out.print(classpath);
+                return;
+            }
+        }
+
+        try (Resolver resolver = createResolver(overrides, cache, threads, maxDescriptors, offlineFirst, timing)) {
+            if (writeLockfile != null) {
+                List<ArtifactResult> results = resolver.resolve(artifacts);
+                Lockfile.write(Paths.get(writeLockfile), results, resolver::originRepositoryId);
+                System.out.print(Resolver.toClasspath(Resolver.toPaths(results)));
+            } else {
+                System.out.print(resolver.classpath(artifacts, useCache));
+            }
+            if (stats) {
+                System.err.println(resolver.descriptorCache().stats());
+            }
+            printTiming(timing, timingFormat);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (RepositoryException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private static Resolver createResolver(ContextOverrides overrides, ClasspathCache cache, int threads,
+            int maxDescriptors, boolean offlineFirst, Timing timing) {
+        long start = System.nanoTime();
+        Resolver resolver = new Resolver(overrides, cache, threads, maxDescriptors);
+        if (offlineFirst) {
+            resolver.offlineFirst(ContextOverrides.create().build(),
+                    a -> System.err.println("Required network access: " + a));
+        }
+        if (timing != null) {
+            timing.addBootstrap(System.nanoTime() - start);
+            resolver.timing(timing);
+        }
+        return resolver;
+    }
+
+    private static void printTiming(Timing timing, String format) {
+        if (timing != null) {
+            System.err.println(format.equals("json") ? timing.reportJson() : timing.report());
+        }
+    }
 }
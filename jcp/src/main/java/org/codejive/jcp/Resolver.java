@@ -0,0 +1,393 @@
+package org.codejive.jcp;
+
+import eu.maveniverse.maven.mima.context.Context;
+import eu.maveniverse.maven.mima.context.ContextOverrides;
+import eu.maveniverse.maven.mima.context.Runtime;
+import eu.maveniverse.maven.mima.context.Runtimes;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositoryException;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.collection.CollectResult;
+import org.eclipse.aether.collection.DependencyCollectionException;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.repository.ArtifactRepository;
+import org.eclipse.aether.repository.LocalArtifactRequest;
+import org.eclipse.aether.repository.LocalArtifactResult;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactDescriptorException;
+import org.eclipse.aether.resolution.ArtifactDescriptorPolicy;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.resolution.DependencyResolutionException;
+import org.eclipse.aether.resolution.DependencyResult;
+import org.eclipse.aether.util.artifact.JavaScopes;
+import org.eclipse.aether.util.graph.visitor.PreorderNodeListGenerator;
+import org.eclipse.aether.util.listener.ChainedRepositoryListener;
+import org.eclipse.aether.util.listener.ChainedTransferListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves sets of artifacts to classpaths using a single MIMA
+ * <code>Context</code> that stays alive until the resolver gets closed.
+ */
+class Resolver implements AutoCloseable {
+    private final Context context;
+    private final ClasspathCache cache;
+    private final int maxDescriptors;
+    private final DescriptorCache descriptorCache;
+    private final DefaultRepositorySystemSession session;
+    private final ExecutorService executor;
+    private ContextOverrides onlineOverrides;
+    private Consumer<Artifact> onNetworkAccess;
+    private Context onlineContext;
+    private DefaultRepositorySystemSession onlineSession;
+    private Timing timing;
+
+    static final int DEFAULT_THREADS = 8;
+
+    /**
+     * Creates a new resolver
+     *
+     * @param overrides the overrides to use for creating the MIMA context
+     * @param cache the classpath cache to use, can be <code>null</code>
+     * @param threads the maximum number of artifacts to download concurrently
+     * @param maxDescriptors the maximum number of artifact descriptors to keep in memory
+     */
+    Resolver(ContextOverrides overrides, ClasspathCache cache, int threads, int maxDescriptors) {
+        Runtime runtime = Runtimes.INSTANCE.getRuntime();
+        this.context = runtime.create(overrides);
+        this.cache = cache;
+        RepositorySystemSession contextSession = context.repositorySystemSession();
+        this.maxDescriptors = maxDescriptors;
+        this.descriptorCache = new DescriptorCache(contextSession.getCache(), maxDescriptors);
+        this.session = new DefaultRepositorySystemSession(contextSession).setCache(descriptorCache);
+        this.executor = Executors.newFixedThreadPool(threads, threadFactory());
+    }
+
+    /**
+     * Turns this resolver, which should have been created with offline
+     * overrides, into an offline-first one: everything gets resolved from the
+     * local repository and only the artifacts that turn out to be missing
+     * get resolved again using a context created from the given overrides.
+     * Missing POMs normally get ignored, which offline would silently drop
+     * the dependencies of artifacts that were never downloaded, so this
+     * resolver stops ignoring them.
+     *
+     * @param onlineOverrides the overrides to use when network access is needed
+     * @param onNetworkAccess gets called for each artifact that needed network access
+     * @return this resolver
+     */
+    Resolver offlineFirst(ContextOverrides onlineOverrides, Consumer<Artifact> onNetworkAccess) {
+        this.onlineOverrides = onlineOverrides;
+        this.onNetworkAccess = onNetworkAccess;
+        ArtifactDescriptorPolicy policy = session.getArtifactDescriptorPolicy();
+        session.setArtifactDescriptorPolicy((s, request) -> (policy != null
+                ? policy.getPolicy(s, request)
+                : ArtifactDescriptorPolicy.STRICT) & ~ArtifactDescriptorPolicy.IGNORE_MISSING);
+        return this;
+    }
+
+    /**
+     * Makes this resolver record timing information about all its resolutions
+     *
+     * @param timing the object to collect the timing information in
+     * @return this resolver
+     */
+    Resolver timing(Timing timing) {
+        this.timing = timing;
+        instrument(session);
+        return this;
+    }
+
+    private void instrument(DefaultRepositorySystemSession session) {
+        session.setTransferListener(
+                ChainedTransferListener.newInstance(session.getTransferListener(), timing.transferListener()));
+        session.setRepositoryListener(
+                ChainedRepositoryListener.newInstance(session.getRepositoryListener(), timing.repositoryListener()));
+        session.setDependencyGraphTransformer(timing.transformer(session.getDependencyGraphTransformer()));
+    }
+
+    /**
+     * Returns the classpath for the given artifacts and all their runtime
+     * dependencies, using the classpath cache when allowed and possible.
+     */
+    String classpath(List<Artifact> artifacts, boolean useCache) throws RepositoryException {
+        String key = null;
+        if (useCache && cache != null && ClasspathCache.isCacheable(artifacts)) {
+            key = ClasspathCache.key(artifacts);
+            String classpath = key != null ? cache.get(key) : null;
+            if (classpath != null) {
+                return classpath;
+            }
+        }
+
+        List<Path> paths = toPaths(resolve(artifacts));
+        if (key != null) {
+            cache.put(key, paths);
+        }
+        return toClasspath(paths);
+    }
+
+    static List<Path> toPaths(List<ArtifactResult> artifactResults) {
+        return artifactResults.stream()
+                .map(ar -> ar.getArtifact().getFile().toPath())
+                .collect(Collectors.toList());
+    }
+
+    static String toClasspath(List<Path> paths) {
+        return paths.stream()
+                .map(Path::toString)
+                .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    /**
+     * Resolves the given artifacts and all their runtime dependencies. The
+     * dependency graph gets collected first, after which all the artifacts in
+     * it get downloaded concurrently.
+     */
+    List<ArtifactResult> resolve(List<Artifact> artifacts) throws RepositoryException {
+        List<Dependency> dependencies = artifacts.stream()
+                .map(a -> new Dependency(a, JavaScopes.RUNTIME))
+                .collect(Collectors.toList());
+        CollectRequest collectRequest = new CollectRequest()
+                .setDependencies(dependencies)
+                .setRepositories(context.remoteRepositories());
+        long start = System.nanoTime();
+        CollectResult collectResult;
+        try {
+            collectResult = context.repositorySystem().collectDependencies(session, collectRequest);
+        } catch (DependencyCollectionException e) {
+            if (onlineOverrides == null) {
+                throw e;
+            }
+            for (Exception ex : e.getResult().getExceptions()) {
+                if (ex instanceof ArtifactDescriptorException) {
+                    onNetworkAccess.accept(((ArtifactDescriptorException) ex).getResult().getArtifact());
+                }
+            }
+            // The graph has to be collected again because the missing descriptors
+            // can change it, but only those need network access, the ones that
+            // were found offline get read from the local repository again
+            collectResult = onlineContext().repositorySystem().collectDependencies(onlineSession, collectRequest);
+        }
+        if (timing != null) {
+            timing.addCollect(System.nanoTime() - start);
+        }
+
+        PreorderNodeListGenerator nlg = new PreorderNodeListGenerator();
+        collectResult.getRoot().accept(nlg);
+        List<ArtifactRequest> requests = nlg.getNodes().stream()
+                .filter(node -> node.getDependency() != null)
+                .map(ArtifactRequest::new)
+                .collect(Collectors.toList());
+        try {
+            return resolveAll(requests);
+        } catch (ArtifactResolutionException e) {
+            DependencyResult result = new DependencyResult(new DependencyRequest(collectResult.getRoot(), null));
+            result.setArtifactResults(e.getResults());
+            throw new DependencyResolutionException(result, e);
+        }
+    }
+
+    /**
+     * Returns the files for the artifacts listed in a lockfile without doing
+     * any graph collection or conflict resolution. Artifacts that are already
+     * in the local repository are used as-is, the others get downloaded and
+     * are checked against the checksum recorded in the lockfile.
+     */
+    List<Path> resolveLocked(List<Lockfile.Entry> entries) throws RepositoryException, IOException {
+        Path localRepo = session.getLocalRepository().getBasedir().toPath();
+        Path[] paths = new Path[entries.size()];
+        List<ArtifactRequest> requests = new ArrayList<>();
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            Lockfile.Entry entry = entries.get(i);
+            Path local = localRepo.resolve(session.getLocalRepositoryManager().getPathForLocalArtifact(entry.artifact));
+            if (Files.isRegularFile(local)) {
+                paths[i] = local;
+            } else {
+                requests.add(new ArtifactRequest(entry.artifact, repositoriesFor(entry.repositoryId), null));
+                missing.add(i);
+            }
+        }
+
+        List<ArtifactResult> results = resolveAll(requests);
+        for (int i = 0; i < results.size(); i++) {
+            Lockfile.Entry entry = entries.get(missing.get(i));
+            Path file = results.get(i).getArtifact().getFile().toPath();
+            if (!Lockfile.sha256(file).equals(entry.sha256)) {
+                Files.deleteIfExists(file);
+                throw new IOException("Checksum mismatch for " + entry.artifact + " downloaded from "
+                        + entry.repositoryId);
+            }
+            paths[missing.get(i)] = file;
+        }
+        return Arrays.asList(paths);
+    }
+
+    /**
+     * Returns the id of the remote repository the artifact of the given result
+     * originally got downloaded from, or <code>null</code> if that's unknown.
+     * Artifacts that were already in the local repository have that as their
+     * repository, for those the origin gets looked up in the records the
+     * local repository keeps of where its artifacts came from.
+     */
+    String originRepositoryId(ArtifactResult result) {
+        ArtifactRepository repository = result.getRepository();
+        if (repository instanceof RemoteRepository) {
+            return repository.getId();
+        }
+        LocalArtifactResult local = session.getLocalRepositoryManager().find(session,
+                new LocalArtifactRequest(result.getArtifact(), context.remoteRepositories(), null));
+        return local.getRepository() != null ? local.getRepository().getId() : null;
+    }
+
+    private List<RemoteRepository> repositoriesFor(String repositoryId) {
+        List<RemoteRepository> repos = context.remoteRepositories().stream()
+                .filter(r -> r.getId().equals(repositoryId))
+                .collect(Collectors.toList());
+        return repos.isEmpty() ? context.remoteRepositories() : repos;
+    }
+
+    // Resolves all requests concurrently, returning the results in the same order.
+    // When offline-first only the requests that failed get retried online.
+    private List<ArtifactResult> resolveAll(List<ArtifactRequest> requests) throws ArtifactResolutionException {
+        long start = System.nanoTime();
+        try {
+            return resolveAllOfflineFirst(requests);
+        } finally {
+            if (timing != null) {
+                timing.addResolve(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private List<ArtifactResult> resolveAllOfflineFirst(List<ArtifactRequest> requests)
+            throws ArtifactResolutionException {
+        try {
+            return resolveAll(context.repositorySystem(), session, requests);
+        } catch (ArtifactResolutionException e) {
+            if (onlineOverrides == null) {
+                throw e;
+            }
+            List<ArtifactResult> results = new ArrayList<>(e.getResults());
+            List<ArtifactRequest> retries = new ArrayList<>();
+            List<Integer> indices = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                if (!results.get(i).isResolved()) {
+                    onNetworkAccess.accept(requests.get(i).getArtifact());
+                    retries.add(requests.get(i));
+                    indices.add(i);
+                }
+            }
+            List<ArtifactResult> retried = resolveAll(onlineContext().repositorySystem(), onlineSession, retries);
+            for (int i = 0; i < retried.size(); i++) {
+                results.set(indices.get(i), retried.get(i));
+            }
+            return results;
+        }
+    }
+
+    private List<ArtifactResult> resolveAll(RepositorySystem system, RepositorySystemSession session,
+            List<ArtifactRequest> requests) throws ArtifactResolutionException {
+        List<CompletableFuture<ArtifactResult>> futures = new ArrayList<>();
+        for (ArtifactRequest request : requests) {
+            futures.add(CompletableFuture.supplyAsync(() -> resolveArtifact(system, session, request), executor));
+        }
+
+        List<ArtifactResult> artifactResults = new ArrayList<>();
+        ArtifactResolutionException failure = null;
+        for (CompletableFuture<ArtifactResult> f : futures) {
+            try {
+                artifactResults.add(f.join());
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof ArtifactResolutionException)) {
+                    throw e;
+                }
+                ArtifactResolutionException ex = (ArtifactResolutionException) e.getCause();
+                artifactResults.addAll(ex.getResults());
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw new ArtifactResolutionException(artifactResults, failure.getMessage(), failure);
+        }
+        return artifactResults;
+    }
+
+    private static ArtifactResult resolveArtifact(RepositorySystem system, RepositorySystemSession session,
+            ArtifactRequest request) {
+        try {
+            return system.resolveArtifact(session, request);
+        } catch (ArtifactResolutionException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private synchronized Context onlineContext() {
+        if (onlineContext == null) {
+            onlineContext = Runtimes.INSTANCE.getRuntime().create(onlineOverrides);
+            // The offline session's descriptor cache remembers the descriptors
+            // that were missing, so the online session needs its own
+            RepositorySystemSession contextSession = onlineContext.repositorySystemSession();
+            onlineSession = new DefaultRepositorySystemSession(contextSession)
+                    .setCache(new DescriptorCache(contextSession.getCache(), maxDescriptors));
+            if (timing != null) {
+                instrument(onlineSession);
+            }
+        }
+        return onlineContext;
+    }
+
+    DescriptorCache descriptorCache() {
+        return descriptorCache;
+    }
+
+    // Uses virtual threads when running on a JVM that supports them
+    private static ThreadFactory threadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderClass.getMethod("name", String.class, long.class).invoke(builder, "jcp-resolver-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return r -> {
+                Thread t = new Thread(r, "jcp-resolver");
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        context.close();
+        synchronized (this) {
+            if (onlineContext != null) {
+                onlineContext.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.codejive.jcp;
+
+import org.eclipse.aether.AbstractRepositoryListener;
+import org.eclipse.aether.RepositoryEvent;
+import org.eclipse.aether.RepositoryException;
+import org.eclipse.aether.RepositoryListener;
+import org.eclipse.aether.collection.DependencyGraphTransformationContext;
+import org.eclipse.aether.collection.DependencyGraphTransformer;
+import org.eclipse.aether.graph.DependencyNode;
+import org.eclipse.aether.transfer.AbstractTransferListener;
+import org.eclipse.aether.transfer.TransferEvent;
+import org.eclipse.aether.transfer.TransferListener;
+import org.eclipse.aether.transfer.TransferResource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timing information about the different phases of a resolution:
+ * runtime bootstrap, graph collection (including version conflict resolution),
+ * artifact resolution and the individual downloads, as well as the number of
+ * metadata requests. All methods are thread-safe so a single instance can be
+ * shared by concurrent resolutions, in which case the totals get summed.
+ */
+class Timing {
+    private final AtomicLong bootstrapNanos = new AtomicLong();
+    private final AtomicLong collectNanos = new AtomicLong();
+    private final AtomicLong conflictNanos = new AtomicLong();
+    private final AtomicLong resolveNanos = new AtomicLong();
+    private final AtomicLong metadataRequests = new AtomicLong();
+    private final AtomicLong metadataDownloads = new AtomicLong();
+    private final ConcurrentLinkedQueue<Download> downloads = new ConcurrentLinkedQueue<>();
+
+    static class Download {
+        final String resource;
+        final long millis;
+        final long bytes;
+
+        Download(String resource, long millis, long bytes) {
+            this.resource = resource;
+            this.millis = millis;
+            this.bytes = bytes;
+        }
+    }
+
+    void addBootstrap(long nanos) {
+        bootstrapNanos.addAndGet(nanos);
+    }
+
+    void addCollect(long nanos) {
+        collectNanos.addAndGet(nanos);
+    }
+
+    void addResolve(long nanos) {
+        resolveNanos.addAndGet(nanos);
+    }
+
+    TransferListener transferListener() {
+        return new AbstractTransferListener() {
+            @Override
+            public void transferSucceeded(TransferEvent event) {
+                if (event.getRequestType() == TransferEvent.RequestType.GET) {
+                    TransferResource res = event.getResource();
+                    long millis = System.currentTimeMillis() - res.getTransferStartTime();
+                    downloads.add(new Download(res.getRepositoryUrl() + res.getResourceName(), millis,
+                            event.getTransferredBytes()));
+                }
+            }
+        };
+    }
+
+    RepositoryListener repositoryListener() {
+        return new AbstractRepositoryListener() {
+            @Override
+            public void metadataResolving(RepositoryEvent event) {
+                metadataRequests.incrementAndGet();
+            }
+
+            @Override
+            public void metadataDownloaded(RepositoryEvent event) {
+                metadataDownloads.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Wraps the given transformer, the one responsible for version conflict
+     * resolution, to measure how much of the collection time it takes.
+     */
+    DependencyGraphTransformer transformer(DependencyGraphTransformer transformer) {
+        if (transformer == null) {
+            return null;
+        }
+        return new DependencyGraphTransformer() {
+            @Override
+            public DependencyNode transformGraph(DependencyNode node, DependencyGraphTransformationContext context)
+                    throws RepositoryException {
+                long start = System.nanoTime();
+                try {
+                    return transformer.transformGraph(node, context);
+                } finally {
+                    conflictNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Timing report:\n");
+        sb.append(String.format("  %-24s %8d ms%n", "bootstrap", millis(bootstrapNanos)));
+        sb.append(String.format("  %-24s %8d ms%n", "graph collection", millis(collectNanos)));
+        sb.append(String.format("  %-24s %8d ms%n", "  conflict resolution", millis(conflictNanos)));
+        sb.append(String.format("  %-24s %8d ms%n", "artifact resolution", millis(resolveNanos)));
+        sb.append(String.format("  %-24s %8d (%d downloaded)%n", "metadata requests", metadataRequests.get(),
+                metadataDownloads.get()));
+        List<Download> dls = new ArrayList<>(downloads);
+        long bytes = dls.stream().mapToLong(d -> d.bytes).sum();
+        sb.append(String.format("  %-24s %8d (%d bytes)%n", "downloads", dls.size(), bytes));
+        for (Download d : dls) {
+            sb.append(String.format("    %6d ms %10d bytes  %s%n", d.millis, d.bytes, d.resource));
+        }
+        return sb.toString();
+    }
+
+    String reportJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{");
+        sb.append("\"bootstrapMs\":").append(millis(bootstrapNanos)).append(',');
+        sb.append("\"collectionMs\":").append(millis(collectNanos)).append(',');
+        sb.append("\"conflictResolutionMs\":").append(millis(conflictNanos)).append(',');
+        sb.append("\"artifactResolutionMs\":").append(millis(resolveNanos)).append(',');
+        sb.append("\"metadataRequests\":").append(metadataRequests.get()).append(',');
+        sb.append("\"metadataDownloads\":").append(metadataDownloads.get()).append(',');
+        sb.append("\"downloads\":[");
+        boolean first = true;
+        for (Download d : downloads) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"resource\":\"").append(jsonEscape(d.resource)).append("\",")
+                    .append("\"ms\":").append(d.millis).append(',')
+                    .append("\"bytes\":").append(d.bytes).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static long millis(AtomicLong nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+    }
+
+    private static String jsonEscape(String txt) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : txt.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,677 @@
+package org.codejive.utils.downloader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the metadata of a cache directory's entries in memory so that
+ * looking up a fresh entry doesn't need to read anything from disk, the
+ * only file system access left is the check that its file still exists,
+ * because another process might have evicted it. The metadata is persisted in a single append-only manifest file in the
+ * cache directory, where each update to an entry adds a line and the
+ * last line for a URL wins. The manifest gets loaded the first time the
+ * index is used and gets compacted once it contains too many outdated
+ * lines. There is a single index per cache directory which is shared by
+ * all <code>Downloader</code> instances. Updates made by other processes
+ * are picked up whenever an entry gets revalidated.
+ * <p>
+ * Caches created by older versions stored each entry's ETag in a separate
+ * file in a "-meta" folder. Because folder names are hashes of the URLs
+ * those entries can't be imported up front, instead they get imported,
+ * and their "-meta" folders removed, the first time they're looked up.
+ * <p>
+ * Partial downloads that were kept so they can be resumed aren't entries,
+ * but their size does count towards the size of the cache. The ones that
+ * don't get resumed within a week are removed.
+ */
+class CacheIndex {
+    static final String MANIFEST_NAME = "cache.manifest";
+    static final String MANIFEST_HEADER = "# downloader cache manifest v1";
+
+    // Access times are only written to the manifest when they differ
+    // at least this much from the time that was last written
+    private static final Duration ACCESS_RESOLUTION = Duration.ofHours(1);
+    // Compact when the manifest has this many more lines than entries
+    private static final int MIN_GARBAGE_LINES = 1000;
+    // Partial downloads that weren't resumed for this long get removed,
+    // they're looked for when the index gets loaded and once a day after that
+    private static final Duration PARTIAL_MAX_AGE = Duration.ofDays(7);
+    private static final Duration PARTIAL_CLEANUP_INTERVAL = Duration.ofDays(1);
+
+    private static final ConcurrentHashMap<Path, CacheIndex> indexes = new ConcurrentHashMap<>();
+    private static final ExecutorService evictor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "downloader-cache-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path cacheDir;
+    private final Path manifest;
+    private final ContentStore store;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalSize = new AtomicLong();
+    // The sizes of the partial downloads, by the folder they're kept in
+    private final ConcurrentHashMap<Path, Long> partials = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong evictedEntries = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private volatile boolean loaded;
+    private Instant nextPartialCleanup = Instant.EPOCH;
+    // The part of the manifest file we have read so far
+    private Object manifestKey;
+    private long manifestOffset;
+    private long manifestLines;
+
+    static class Entry {
+        final Path file;
+        final String etag;
+        // The last time the server confirmed the file is up-to-date
+        final Instant lastValidated;
+        final long size;
+        // Optional digests of the file's contents, of the form "sha256:hex,sha1:hex"
+        final String digest;
+        volatile Instant lastAccess;
+        volatile Instant storedAccess;
+        // The number of times the entry was used
+        final AtomicLong hits;
+        // How long the entry stays fresh according to the server
+        final Freshness freshness;
+
+        Entry(Path file, String etag, Instant lastValidated, long size, String digest, Instant lastAccess,
+                long hits, Freshness freshness) {
+            this.file = file;
+            this.etag = etag;
+            this.lastValidated = lastValidated;
+            this.size = size;
+            this.digest = digest;
+            this.lastAccess = lastAccess;
+            this.storedAccess = lastAccess;
+            this.hits = new AtomicLong(hits);
+            this.freshness = freshness;
+        }
+    }
+
+    private CacheIndex(Path cacheDir) {
+        this.cacheDir = cacheDir;
+        this.manifest = cacheDir.resolve(MANIFEST_NAME);
+        this.store = new ContentStore(cacheDir);
+    }
+
+    static CacheIndex forDir(Path cacheDir) {
+        return indexes.computeIfAbsent(cacheDir.toAbsolutePath().normalize(), CacheIndex::new);
+    }
+
+    /**
+     * Returns the indexed entry for the given URL, or null if there is none.
+     * Only the first call reads the manifest, after that it's answered
+     * from memory.
+     */
+    Entry get(String fileURL) throws IOException {
+        ensureLoaded();
+        return entries.get(fileURL);
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    readManifest();
+                    markLoaded();
+                }
+            }
+        }
+    }
+
+    private void markLoaded() {
+        if (!loaded) {
+            loaded = true;
+            cleanPartialDownloadsIfDue();
+        }
+    }
+
+    /**
+     * Returns the up-to-date entry for the given URL, taking into account
+     * changes made by other processes and entries stored in the old format.
+     * Returns null if there is no cached file.
+     */
+    Entry refresh(String fileURL, Path saveDir) throws IOException {
+        synchronized (this) {
+            readManifest();
+            markLoaded();
+        }
+        Entry entry = entries.get(fileURL);
+        if (entry != null && Files.isRegularFile(entry.file)) {
+            return entry;
+        }
+        Path cachedFile = Downloader.getCachedFile(saveDir);
+        if (cachedFile == null) {
+            if (entry != null) {
+                removeEntry(fileURL, entry);
+                append("D\t" + fileURL);
+                release(entry);
+            }
+            return null;
+        }
+        return importLegacy(fileURL, saveDir, cachedFile);
+    }
+
+    private Entry importLegacy(String fileURL, Path saveDir, Path cachedFile) throws IOException {
+        Path metaSaveDir = Downloader.getCacheMetaDir(saveDir);
+        String etag = Downloader.safeReadEtagFile(cachedFile, metaSaveDir);
+        Instant lastValidated = Files.getLastModifiedTime(cachedFile).toInstant();
+        Entry entry = new Entry(cachedFile, etag, lastValidated, Files.size(cachedFile), null, lastValidated, 1,
+                Freshness.UNKNOWN);
+        put(fileURL, entry);
+        Util.deletePath(metaSaveDir);
+        return entry;
+    }
+
+    /**
+     * Records the result of a download or revalidation of the given URL
+     *
+     * @param fileURL the URL that was requested
+     * @param file the cached file
+     * @param conn the connection that returned the file
+     * @param digests the digests of the downloaded file, see <code>Digests.values()</code>
+     */
+    void update(String fileURL, Path file, URLConnection conn, String digests) throws IOException {
+        Entry old = entries.get(fileURL);
+        boolean unmodified = conn instanceof HttpURLConnection
+                && ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED
+                && old != null && old.file.equals(file);
+        String etag = conn.getHeaderField("ETag");
+        Instant now = Instant.now();
+        Entry entry;
+        long hits = old != null ? old.hits.get() + 1 : 1;
+        Freshness freshness = Freshness.of(conn);
+        if (unmodified) {
+            // A 304 only needs to repeat the caching headers if they changed
+            if (!freshness.isKnown()) {
+                freshness = old.freshness;
+            }
+            entry = new Entry(file, etag != null ? etag : old.etag, now, old.size, old.digest, now, hits, freshness);
+        } else {
+            entry = new Entry(file, etag, now, Files.size(file), digests, now, hits, freshness);
+        }
+        put(fileURL, entry);
+        if (!unmodified && old != null) {
+            release(old);
+        }
+    }
+
+    /**
+     * Adds the cached file for the given URL to the content store, so it
+     * shares its storage with any other cached files with the same contents,
+     * and records its digest if it wasn't known yet
+     */
+    void deduplicate(String fileURL) throws IOException {
+        Entry entry = get(fileURL);
+        if (entry == null || !Files.isRegularFile(entry.file)) {
+            return;
+        }
+        String hex = Checksum.find(entry.digest, ContentStore.ALGORITHM);
+        String added = store.add(entry.file, hex);
+        if (hex == null) {
+            addDigests(fileURL, entry, ContentStore.ALGORITHM + ":" + added);
+        }
+    }
+
+    /**
+     * Records additional digests of the cached file of the given entry
+     *
+     * @return the updated entry
+     */
+    Entry addDigests(String fileURL, Entry entry, String digests) throws IOException {
+        Entry updated = new Entry(entry.file, entry.etag, entry.lastValidated, entry.size,
+                mergeDigests(entry.digest, digests), entry.lastAccess, entry.hits.get(), entry.freshness);
+        if (entries.replace(fileURL, entry, updated)) {
+            append(format(fileURL, updated));
+        }
+        return updated;
+    }
+
+    /**
+     * Adds a cache entry for a file that didn't come from the server but
+     * from the content store. Because the server never confirmed the file is
+     * up-to-date, it will be checked the next time it's requested without
+     * a checksum.
+     */
+    Entry putStored(String fileURL, Path file, String digests) throws IOException {
+        Entry old = entries.get(fileURL);
+        long hits = old != null ? old.hits.get() + 1 : 1;
+        Entry entry = new Entry(file, null, Instant.EPOCH, Files.size(file), digests, Instant.now(), hits,
+                Freshness.UNKNOWN);
+        put(fileURL, entry);
+        if (old != null) {
+            release(old);
+        }
+        return entry;
+    }
+
+    ContentStore store() {
+        return store;
+    }
+
+    private static String mergeDigests(String digests, String more) {
+        if (digests == null) {
+            return more;
+        }
+        StringBuilder sb = new StringBuilder(more);
+        for (String digest : digests.split(",")) {
+            String algorithm = digest.substring(0, Math.max(0, digest.indexOf(':')));
+            if (Checksum.find(more, algorithm) == null) {
+                sb.append(',').append(digest);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Removes the entry's contents from the content store if no other entry uses them
+    private void release(Entry entry) {
+        String hex = Checksum.find(entry.digest, ContentStore.ALGORITHM);
+        if (hex != null && entries.values().stream()
+                .noneMatch(e -> hex.equals(Checksum.find(e.digest, ContentStore.ALGORITHM)))) {
+            store.release(hex);
+        }
+    }
+
+    /**
+     * Marks the entry as used, which only gets persisted once in a while
+     * so cache hits don't have to write to the manifest
+     */
+    void accessed(String fileURL, Entry entry) {
+        Instant now = Instant.now();
+        entry.lastAccess = now;
+        long hits = entry.hits.incrementAndGet();
+        if (Duration.between(entry.storedAccess, now).compareTo(ACCESS_RESOLUTION) >= 0) {
+            entry.storedAccess = now;
+            try {
+                append("A\t" + fileURL + "\t" + now.toEpochMilli() + "\t" + hits);
+            } catch (IOException e) {
+                Downloader.logger.log(Level.FINE, "Unable to update cache manifest " + manifest, e);
+            }
+        }
+    }
+
+    private void put(String fileURL, Entry entry) throws IOException {
+        putEntry(fileURL, entry);
+        append(format(fileURL, entry));
+    }
+
+    private void putEntry(String fileURL, Entry entry) {
+        Entry old = entries.put(fileURL, entry);
+        totalSize.addAndGet(entry.size - (old != null ? old.size : 0));
+    }
+
+    private void removeEntry(String fileURL, Entry entry) {
+        if (entries.remove(fileURL, entry)) {
+            totalSize.addAndGet(-entry.size);
+        }
+    }
+
+    /**
+     * Records the size of the partial download kept in the given folder, or
+     * forgets about it if there is none anymore. Callers must hold the
+     * exclusive lock for the folder's cache entry.
+     */
+    void partialDownload(Path partDir) {
+        Path key = partDir.toAbsolutePath().normalize();
+        long size;
+        try {
+            size = Files.size(key.resolve(ResultHandler.PART_CONTENT));
+        } catch (IOException e) {
+            size = 0;
+        }
+        Long old = size > 0 ? partials.put(key, size) : partials.remove(key);
+        totalSize.addAndGet(size - (old != null ? old : 0));
+    }
+
+    private synchronized void cleanPartialDownloadsIfDue() {
+        Instant now = Instant.now();
+        if (now.isAfter(nextPartialCleanup)) {
+            nextPartialCleanup = now.plus(PARTIAL_CLEANUP_INTERVAL);
+            evictor.execute(this::cleanPartialDownloads);
+        }
+    }
+
+    // Removes the partial downloads that are too old to be resumed and
+    // picks up the others, which might have been left behind by earlier runs
+    private void cleanPartialDownloads() {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        Instant maxModified = Instant.now().minus(PARTIAL_MAX_AGE);
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            files.filter(f -> f.getFileName().toString().endsWith(Downloader.PARTIAL_SUFFIX) && Files.isDirectory(f))
+                    .forEach(partDir -> {
+                        Path saveDir = saveDirOf(partDir);
+                        try (CacheLock lock = CacheLock.exclusive(saveDir)) {
+                            Path partFile = partDir.resolve(ResultHandler.PART_CONTENT);
+                            Instant modified = Files.getLastModifiedTime(
+                                    Files.exists(partFile) ? partFile : partDir).toInstant();
+                            if (modified.isBefore(maxModified) && Util.deletePath(partDir)) {
+                                Downloader.logger.log(Level.FINE, "Removed old partial download " + partDir);
+                                partialDownload(partDir);
+                                if (!Files.exists(saveDir)) {
+                                    lock.deleteFile();
+                                }
+                            } else {
+                                partialDownload(partDir);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException | UncheckedIOException e) {
+            Downloader.logger.log(Level.FINE, "Unable to clean up partial downloads in " + cacheDir, e);
+        }
+    }
+
+    private static Path saveDirOf(Path partDir) {
+        String name = partDir.getFileName().toString();
+        return partDir.resolveSibling(name.substring(0, name.length() - Downloader.PARTIAL_SUFFIX.length()));
+    }
+
+    /**
+     * Makes sure the cache doesn't grow beyond the given limits by removing
+     * the least valuable entries according to the given policy. This is done
+     * asynchronously, one entry at a time, so it never blocks any downloads
+     * for longer than it takes to remove a single entry.
+     *
+     * @param maxSize the maximum total size in bytes of the cached files
+     * @param maxEntries the maximum number of entries
+     * @param policy determines which entries get removed first
+     */
+    void evictIfNeeded(long maxSize, int maxEntries, Downloader.EvictionPolicy policy) {
+        cleanPartialDownloadsIfDue();
+        if (totalSize.get() > maxSize || entries.size() > maxEntries) {
+            if (evicting.compareAndSet(false, true)) {
+                evictor.execute(() -> {
+                    try {
+                        evict(maxSize, maxEntries, policy);
+                    } catch (Throwable th) {
+                        Downloader.logger.log(Level.FINE, "Cache eviction failed for " + cacheDir, th);
+                    } finally {
+                        evicting.set(false);
+                    }
+                });
+            }
+        }
+    }
+
+    // What eviction needs to know about an entry. Entries are used while
+    // eviction runs, so it sorts copies of the values that keep changing.
+    private static class Candidate {
+        final String fileURL;
+        final Entry entry;
+        final Instant lastAccess;
+        final long hits;
+
+        Candidate(String fileURL, Entry entry) {
+            this.fileURL = fileURL;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+            this.hits = entry.hits.get();
+        }
+    }
+
+    private void evict(long maxSize, int maxEntries, Downloader.EvictionPolicy policy) throws IOException {
+        // Partial downloads go first, they're of no use until they get resumed
+        for (Map.Entry<Path, Long> partial : new ArrayList<>(partials.entrySet())) {
+            if (totalSize.get() <= maxSize) {
+                break;
+            }
+            Path partDir = partial.getKey();
+            try (CacheLock lock = CacheLock.exclusive(saveDirOf(partDir))) {
+                // Skip partial downloads that were resumed since we made our list
+                if (!partial.getValue().equals(partials.get(partDir)) || !Util.deletePath(partDir)) {
+                    continue;
+                }
+                partialDownload(partDir);
+                if (!Files.exists(saveDirOf(partDir))) {
+                    lock.deleteFile();
+                }
+                evictedBytes.addAndGet(partial.getValue());
+                Downloader.logger.log(Level.FINE, String.format("Evicted partial download %s (%d bytes)",
+                        partDir, partial.getValue()));
+            }
+        }
+        Comparator<Candidate> order = Comparator.comparing(c -> c.lastAccess);
+        if (policy == Downloader.EvictionPolicy.LFU) {
+            order = Comparator.<Candidate>comparingLong(c -> c.hits).thenComparing(order);
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        entries.forEach((url, entry) -> candidates.add(new Candidate(url, entry)));
+        candidates.sort(order);
+        for (Candidate candidate : candidates) {
+            if (totalSize.get() <= maxSize && entries.size() <= maxEntries) {
+                break;
+            }
+            String fileURL = candidate.fileURL;
+            Entry entry = candidate.entry;
+            Path saveDir = entry.file.getParent();
+            try (CacheLock lock = CacheLock.exclusive(saveDir)) {
+                // Skip entries that got updated since we made our list
+                if (entries.get(fileURL) != entry) {
+                    continue;
+                }
+                boolean existed = Files.isDirectory(saveDir);
+                if (!Util.deletePath(saveDir)) {
+                    continue;
+                }
+                removeEntry(fileURL, entry);
+                append("D\t" + fileURL);
+                release(entry);
+                // Nothing else that belongs to the entry is of any use anymore, not
+                // even its lock file
+                Util.deletePath(Downloader.getCacheMetaDir(saveDir));
+                Path partDir = Downloader.getPartialDownloadDir(saveDir);
+                Long partialSize = partials.get(partDir.toAbsolutePath().normalize());
+                Util.deletePath(partDir);
+                partialDownload(partDir);
+                lock.deleteFile();
+                // Another process might have removed it already
+                if (existed) {
+                    evictedEntries.incrementAndGet();
+                    evictedBytes.addAndGet(entry.size + (partialSize != null ? partialSize : 0));
+                    Downloader.logger.log(Level.FINE, String.format("Evicted cached file %s (%d bytes) for remote %s",
+                            entry.file, entry.size, fileURL));
+                }
+            }
+        }
+    }
+
+    CacheStats stats() throws IOException {
+        ensureLoaded();
+        return new CacheStats(entries.size(), totalSize.get(), evictedEntries.get(), evictedBytes.get());
+    }
+
+    private String format(String fileURL, Entry entry) {
+        return "P\t" + fileURL
+                + "\t" + cacheDir.relativize(entry.file.toAbsolutePath().normalize()).toString().replace('\\', '/')
+                + "\t" + (entry.etag != null ? entry.etag : "")
+                + "\t" + entry.lastValidated.toEpochMilli()
+                + "\t" + entry.size
+                + "\t" + (entry.digest != null ? entry.digest : "")
+                + "\t" + entry.lastAccess.toEpochMilli()
+                + "\t" + entry.hits.get()
+                + "\t" + (entry.freshness.maxAge >= 0 ? Long.toString(entry.freshness.maxAge) : "")
+                + "\t" + (entry.freshness.immutable ? "immutable" : "");
+    }
+
+    private static void accessed(Entry entry, Instant access, long hits) {
+        if (access.isAfter(entry.lastAccess)) {
+            entry.lastAccess = access;
+            entry.storedAccess = access;
+        }
+        entry.hits.accumulateAndGet(hits, Math::max);
+    }
+
+    private void parse(String line, Set<String> seen) {
+        String[] parts = line.split("\t", -1);
+        try {
+            switch (parts[0]) {
+            case "P":
+                seen.add(parts[1]);
+                Entry entry = new Entry(cacheDir.resolve(parts[2]),
+                        parts[3].isEmpty() ? null : parts[3],
+                        Instant.ofEpochMilli(Long.parseLong(parts[4])),
+                        Long.parseLong(parts[5]),
+                        parts[6].isEmpty() ? null : parts[6],
+                        Instant.ofEpochMilli(Long.parseLong(parts[7])),
+                        parts.length > 8 ? Long.parseLong(parts[8]) : 1,
+                        parts.length > 10
+                                ? new Freshness(parts[9].isEmpty() ? -1 : Long.parseLong(parts[9]),
+                                        !parts[10].isEmpty())
+                                : Freshness.UNKNOWN);
+                Entry current = entries.get(parts[1]);
+                if (current != null) {
+                    // Don't lose the usage information we have in memory
+                    accessed(entry, current.lastAccess, current.hits.get());
+                    if (current.file.equals(entry.file)
+                            && !entry.lastValidated.isAfter(current.lastValidated)
+                            && (entry.digest == null || entry.digest.equals(current.digest))) {
+                        // We already have this record, probably because we wrote it ourselves
+                        accessed(current, entry.lastAccess, entry.hits.get());
+                        break;
+                    }
+                }
+                putEntry(parts[1], entry);
+                break;
+            case "A":
+                Entry e = entries.get(parts[1]);
+                if (e != null) {
+                    accessed(e, Instant.ofEpochMilli(Long.parseLong(parts[2])),
+                            parts.length > 3 ? Long.parseLong(parts[3]) : 0);
+                }
+                break;
+            case "D":
+                Entry old = entries.remove(parts[1]);
+                if (old != null) {
+                    totalSize.addAndGet(-old.size);
+                }
+                break;
+            default:
+                // Comments and unknown records are skipped
+            }
+        } catch (RuntimeException e) {
+            Downloader.logger.log(Level.FINE, "Skipping invalid cache manifest line: " + line);
+        }
+    }
+
+    private synchronized void readManifest() throws IOException {
+        if (!Files.isRegularFile(manifest)) {
+            return;
+        }
+        try (CacheLock lock = CacheLock.shared(manifest)) {
+            readTail();
+        }
+        if (manifestLines - entries.size() > MIN_GARBAGE_LINES + entries.size()) {
+            compact();
+        }
+    }
+
+    // Reads whatever was appended to the manifest since the last time,
+    // or all of it when it's new to us because it got compacted.
+    // Callers must hold a lock on the manifest.
+    private void readTail() throws IOException {
+        try (FileChannel ch = FileChannel.open(manifest, StandardOpenOption.READ)) {
+            Object key = Files.readAttributes(manifest, BasicFileAttributes.class).fileKey();
+            long size = ch.size();
+            boolean full = key == null || !key.equals(manifestKey) || size < manifestOffset;
+            if (full) {
+                manifestKey = key;
+                manifestOffset = 0;
+                manifestLines = 0;
+            }
+            Set<String> seen = new HashSet<>();
+            if (size > manifestOffset) {
+                ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(size - manifestOffset));
+                int n = 0;
+                while (buf.hasRemaining() && n >= 0) {
+                    n = ch.read(buf, manifestOffset + buf.position());
+                }
+                byte[] data = buf.array();
+                int start = 0;
+                for (int i = 0; i < buf.position(); i++) {
+                    if (data[i] == '\n') {
+                        parse(new String(data, start, i - start, StandardCharsets.UTF_8), seen);
+                        manifestLines++;
+                        start = i + 1;
+                    }
+                }
+                // An incomplete last line is left for the next time
+                manifestOffset += start;
+            }
+            if (full) {
+                // The entries are updated in place, so lookups never miss while we
+                // read, and only the ones that are no longer in the manifest get dropped
+                entries.forEach((url, entry) -> {
+                    if (!seen.contains(url)) {
+                        removeEntry(url, entry);
+                    }
+                });
+            }
+        }
+    }
+
+    private void append(String line) throws IOException {
+        if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+            throw new IOException("Invalid cache manifest record: " + line);
+        }
+        Files.createDirectories(cacheDir);
+        byte[] data = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        try (CacheLock lock = CacheLock.shared(manifest);
+             FileChannel ch = FileChannel.open(manifest, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.APPEND)) {
+            if (ch.size() == 0) {
+                data = (MANIFEST_HEADER + "\n" + line + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            // A single write, so lines written by different processes don't get mixed up
+            ch.write(ByteBuffer.wrap(data));
+        }
+    }
+
+    // Replaces the manifest with one that only contains the current entries
+    private synchronized void compact() throws IOException {
+        try (CacheLock lock = CacheLock.exclusive(manifest)) {
+            // Pick up anything that got appended before we got the lock
+            readTail();
+            Path tmp = cacheDir.resolve(MANIFEST_NAME + ".tmp");
+            StringBuilder sb = new StringBuilder(MANIFEST_HEADER).append('\n');
+            entries.forEach((url, entry) -> sb.append(format(url, entry)).append('\n'));
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            manifestKey = Files.readAttributes(manifest, BasicFileAttributes.class).fileKey();
+            manifestOffset = Files.size(manifest);
+            manifestLines = entries.size() + 1;
+        } catch (IOException | RuntimeException e) {
+            Downloader.logger.log(Level.FINE, "Unable to compact cache manifest " + manifest, e);
+        }
+    }
+}
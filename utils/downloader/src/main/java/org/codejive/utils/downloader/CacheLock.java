@@ -0,0 +1,188 @@
+package org.codejive.utils.downloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+/**
+ * A lock on a cache entry that is respected by all threads and processes
+ * sharing the same cache directory. Readers take a shared lock, which
+ * allows any number of them to access an entry at the same time, while
+ * writers take an exclusive lock. Between processes this is done using
+ * a file lock on a ".lock" file next to the entry's folder. Because the
+ * JVM doesn't allow overlapping file locks on the same file, threads within
+ * a JVM coordinate using a read/write lock and share a single file lock.
+ * <p>
+ * Lock files are empty. A lock file that gets removed is first marked by
+ * writing to it, so processes that were waiting for a lock on it know they
+ * have to lock the new file instead.
+ */
+class CacheLock implements AutoCloseable {
+    private static final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Path key;
+    private final Entry entry;
+    private final boolean shared;
+
+    private static class Entry {
+        final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+        int users;
+        int readers;
+        FileChannel channel;
+    }
+
+    private CacheLock(Path key, Entry entry, boolean shared) {
+        this.key = key;
+        this.entry = entry;
+        this.shared = shared;
+    }
+
+    static Path lockFile(Path saveDir) {
+        return saveDir.getParent().resolve(saveDir.getFileName() + ".lock");
+    }
+
+    /**
+     * Waits until the cache entry can be locked for reading. If the lock
+     * file can't be created, for example because the cache is read-only,
+     * only other threads in this JVM are excluded.
+     *
+     * @param saveDir the directory of the cache entry to lock
+     * @return the lock, must be closed to release it
+     */
+    static CacheLock shared(Path saveDir) throws IOException {
+        Path key = saveDir.toAbsolutePath().normalize();
+        Entry entry = acquire(key);
+        entry.rwLock.readLock().lock();
+        try {
+            synchronized (entry) {
+                if (entry.readers == 0) {
+                    try {
+                        lockFile(entry, key, true);
+                    } catch (IOException e) {
+                        Downloader.logger.log(Level.FINE, "Unable to lock " + saveDir, e);
+                    }
+                }
+                entry.readers++;
+            }
+            return new CacheLock(key, entry, true);
+        } catch (RuntimeException e) {
+            unlock(entry.rwLock.readLock(), key, entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until the cache entry can be locked for writing
+     *
+     * @param saveDir the directory of the cache entry to lock
+     * @return the lock, must be closed to release it
+     */
+    static CacheLock exclusive(Path saveDir) throws IOException {
+        Path key = saveDir.toAbsolutePath().normalize();
+        Entry entry = acquire(key);
+        entry.rwLock.writeLock().lock();
+        try {
+            synchronized (entry) {
+                lockFile(entry, key, false);
+            }
+            return new CacheLock(key, entry, false);
+        } catch (IOException | RuntimeException e) {
+            unlock(entry.rwLock.writeLock(), key, entry);
+            throw e;
+        }
+    }
+
+    private static Entry acquire(Path key) {
+        return entries.compute(key, (k, e) -> {
+            if (e == null) {
+                e = new Entry();
+            }
+            e.users++;
+            return e;
+        });
+    }
+
+    private static void unlock(Lock lock, Path key, Entry entry) {
+        lock.unlock();
+        entries.computeIfPresent(key, (k, e) -> --e.users == 0 ? null : e);
+    }
+
+    private static void lockFile(Entry entry, Path key, boolean shared) throws IOException {
+        Files.createDirectories(key.getParent());
+        while (true) {
+            FileChannel channel = FileChannel.open(lockFile(key), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                channel.lock(0, Long.MAX_VALUE, shared);
+                if (channel.size() == 0) {
+                    entry.channel = channel;
+                    return;
+                }
+                // The file got removed while we were waiting for it
+                channel.close();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Removes the lock file, for when the cache entry itself got removed.
+     * Can only be used while holding an exclusive lock, and must be the last
+     * thing done with it, because other processes can lock a new file right
+     * away.
+     */
+    void deleteFile() {
+        if (shared) {
+            throw new IllegalStateException("Lock files can only be removed by exclusive locks");
+        }
+        synchronized (entry) {
+            FileChannel channel = entry.channel;
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.write(ByteBuffer.wrap(new byte[] { 'x' }), 0);
+                try {
+                    Files.delete(lockFile(key));
+                } catch (IOException e) {
+                    // The file has to stay usable
+                    channel.truncate(0);
+                    throw e;
+                }
+            } catch (IOException e) {
+                Downloader.logger.log(Level.FINE, "Unable to remove lock file for " + key, e);
+            }
+        }
+    }
+
+    private static void releaseFile(Entry entry) throws IOException {
+        FileChannel channel = entry.channel;
+        entry.channel = null;
+        if (channel != null) {
+            // Closing the channel also releases its lock
+            channel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (entry) {
+                if (!shared || --entry.readers == 0) {
+                    releaseFile(entry);
+                }
+            }
+        } finally {
+            unlock(shared ? entry.rwLock.readLock() : entry.rwLock.writeLock(), key, entry);
+        }
+    }
+}
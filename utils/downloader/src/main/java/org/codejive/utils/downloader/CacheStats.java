@@ -0,0 +1,54 @@
+package org.codejive.utils.downloader;
+
+/**
+ * A snapshot of the state of a download cache. The eviction counts only
+ * include the entries that were evicted by the current JVM.
+ */
+public class CacheStats {
+    private final long entries;
+    private final long size;
+    private final long evictedEntries;
+    private final long evictedBytes;
+
+    CacheStats(long entries, long size, long evictedEntries, long evictedBytes) {
+        this.entries = entries;
+        this.size = size;
+        this.evictedEntries = evictedEntries;
+        this.evictedBytes = evictedBytes;
+    }
+
+    /**
+     * The number of entries in the cache
+     */
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * The total size in bytes of all the cached files, including the partial
+     * downloads that were kept so they can be resumed
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The number of entries that were removed to keep the cache within its limits
+     */
+    public long evictedEntries() {
+        return evictedEntries;
+    }
+
+    /**
+     * The number of bytes that were removed to keep the cache within its limits
+     */
+    public long evictedBytes() {
+        return evictedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Download cache: %d entries, %d bytes (evicted %d entries, %d bytes)",
+                entries, size, evictedEntries, evictedBytes);
+    }
+}
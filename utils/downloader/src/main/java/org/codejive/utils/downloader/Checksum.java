@@ -0,0 +1,139 @@
+package org.codejive.utils.downloader;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * The expected checksum of a file to download. Supported algorithms are
+ * "sha256", "sha1" and "md5".
+ */
+public final class Checksum {
+    static final String SHA256 = "sha256";
+    static final String SHA1 = "sha1";
+    static final String MD5 = "md5";
+
+    private final String algorithm;
+    private final String hex;
+
+    private Checksum(String algorithm, String hex) {
+        this.algorithm = algorithm;
+        this.hex = hex;
+    }
+
+    /**
+     * Creates a checksum from the name of its algorithm and its value
+     *
+     * @param algorithm "sha256", "sha1" or "md5", as well as the Java names "SHA-256" and "SHA-1"
+     * @param hex the hexadecimal value of the checksum
+     * @return the checksum
+     * @throws IllegalArgumentException if the algorithm isn't supported or the value is invalid
+     */
+    public static Checksum of(String algorithm, String hex) {
+        String alg = algorithm.toLowerCase(Locale.ROOT).replace("-", "");
+        int length = hexLength(alg);
+        if (length < 0) {
+            throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+        }
+        String value = hex.trim().toLowerCase(Locale.ROOT);
+        if (value.length() != length || !value.matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException("Invalid " + alg + " checksum: " + hex);
+        }
+        return new Checksum(alg, value);
+    }
+
+    /**
+     * Parses a checksum of the form "algorithm:hex", for example "sha256:9f86d08..."
+     *
+     * @throws IllegalArgumentException if the checksum isn't valid
+     */
+    public static Checksum parse(String checksum) {
+        int p = checksum.indexOf(':');
+        if (p < 0) {
+            throw new IllegalArgumentException("Checksum must be of the form algorithm:hex: " + checksum);
+        }
+        return of(checksum.substring(0, p), checksum.substring(p + 1));
+    }
+
+    public String algorithm() {
+        return algorithm;
+    }
+
+    public String hex() {
+        return hex;
+    }
+
+    // Returns the value of this checksum's algorithm in a list of digests
+    // of the form "sha256:hex,sha1:hex", or null if it's not in the list
+    String find(String digests) {
+        return find(digests, algorithm);
+    }
+
+    static String find(String digests, String algorithm) {
+        if (digests != null) {
+            for (String digest : digests.split(",")) {
+                if (digest.startsWith(algorithm + ":")) {
+                    return digest.substring(algorithm.length() + 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    static MessageDigest newDigest(String algorithm) {
+        String name;
+        switch (algorithm) {
+        case SHA256:
+            name = "SHA-256";
+            break;
+        case SHA1:
+            name = "SHA-1";
+            break;
+        case MD5:
+            name = "MD5";
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+        }
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int hexLength(String algorithm) {
+        switch (algorithm) {
+        case SHA256:
+            return 64;
+        case SHA1:
+            return 40;
+        case MD5:
+            return 32;
+        default:
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Checksum)) {
+            return false;
+        }
+        Checksum other = (Checksum) o;
+        return algorithm.equals(other.algorithm) && hex.equals(other.hex);
+    }
+
+    @Override
+    public int hashCode() {
+        return algorithm.hashCode() * 31 + hex.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + hex;
+    }
+}
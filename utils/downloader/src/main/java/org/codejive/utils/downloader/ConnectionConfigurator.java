@@ -3,12 +3,10 @@ package org.codejive.utils.downloader;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URLConnection;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
 
 interface ConnectionConfigurator {
 
@@ -53,11 +51,26 @@ interface ConnectionConfigurator {
         });
     }
 
-    static ConnectionConfigurator cacheControl(Path cachedFile, Path metaSaveDir) throws IOException {
-        if (cachedFile != null && !isFresh()) {
-            String cachedETag = Downloader.safeReadEtagFile(cachedFile, metaSaveDir);
-            Instant lmt = Files.getLastModifiedTime(cachedFile).toInstant();
-            ZonedDateTime zlmt = ZonedDateTime.ofInstant(lmt, ZoneId.of("GMT"));
+    static ConnectionConfigurator acceptEncoding(Collection<String> encodings) {
+        return forHttp(conn -> {
+            if (!encodings.isEmpty()) {
+                conn.setRequestProperty("Accept-Encoding", String.join(", ", encodings));
+            }
+        });
+    }
+
+    static ConnectionConfigurator resume(long offset, String etag) {
+        return forHttp(conn -> {
+            conn.setRequestProperty("Range", "bytes=" + offset + "-");
+            // Only send what's missing if it's still the same file
+            conn.setRequestProperty("If-Range", etag);
+        });
+    }
+
+    static ConnectionConfigurator cacheControl(CacheIndex.Entry entry) {
+        if (entry != null) {
+            String cachedETag = entry.etag;
+            ZonedDateTime zlmt = ZonedDateTime.ofInstant(entry.lastValidated, ZoneId.of("GMT"));
             String cachedLastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(zlmt);
             return conn -> {
                 if (cachedETag != null) {
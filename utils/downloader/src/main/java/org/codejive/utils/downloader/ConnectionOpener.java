@@ -0,0 +1,35 @@
+package org.codejive.utils.downloader;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Locale;
+
+/**
+ * Opens the connections for all the requests a downloader makes, including
+ * those for redirects and the segments of segmented downloads, which is
+ * what determines the transport that gets used
+ */
+interface ConnectionOpener {
+
+    URLConnection open(URL url) throws IOException;
+
+    static ConnectionOpener urlConnection() {
+        return URL::openConnection;
+    }
+
+    /**
+     * Uses <code>java.net.http.HttpClient</code> for HTTP and HTTPS URLs, which
+     * lets requests to the same host share a connection when the server
+     * supports HTTP/2
+     */
+    static ConnectionOpener httpClient() {
+        return url -> {
+            String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+            if (protocol.equals("http") || protocol.equals("https")) {
+                return new HttpClientConnection(url);
+            }
+            return url.openConnection();
+        };
+    }
+}
@@ -0,0 +1,22 @@
+package org.codejive.utils.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes content that the server compressed using one of the encodings
+ * mentioned in the request's "Accept-Encoding" header, see
+ * <code>Downloader.contentDecoder()</code>
+ */
+@FunctionalInterface
+public interface ContentDecoder {
+
+    /**
+     * Returns a stream with the decoded content of the given stream
+     *
+     * @param in the content as it was received from the server
+     * @return the decoded content
+     * @throws IOException
+     */
+    InputStream decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,137 @@
+package org.codejive.utils.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Stores files under the SHA-256 hash of their contents, so files with
+ * the same contents only get stored once. Cache entries refer to the
+ * stored files using hard links. On file systems that don't support hard
+ * links entries simply keep their own copy.
+ */
+class ContentStore {
+    static final String ALGORITHM = Checksum.SHA256;
+
+    private final Path storeDir;
+
+    ContentStore(Path cacheDir) {
+        this.storeDir = cacheDir.resolve("cas").resolve(ALGORITHM);
+    }
+
+    /**
+     * Returns the stored file with the given SHA-256 hash
+     *
+     * @param hex the hash of the file's contents
+     * @return the path of the file or null if it's not stored
+     */
+    Path get(String hex) {
+        if (!isValid(hex)) {
+            return null;
+        }
+        Path blob = blob(hex);
+        return Files.isRegularFile(blob) ? blob : null;
+    }
+
+    /**
+     * Makes the given file a link to the stored file, falling back to a copy
+     * when links aren't supported
+     */
+    void copy(Path blob, Path file) throws IOException {
+        try {
+            link(blob, file);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.createDirectories(file.getParent());
+            Files.copy(blob, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Adds the given file to the store. If a file with the same contents is
+     * already stored the given file gets replaced by a link to it.
+     *
+     * @param file the file to add
+     * @param hex the SHA-256 hash of the file's contents if known, otherwise
+     *            the file gets read to compute it
+     * @return the SHA-256 hash of the file's contents
+     */
+    String add(Path file, String hex) throws IOException {
+        if (!isValid(hex)) {
+            hex = Util.toHex(digest(file));
+        }
+        Path blob = blob(hex);
+        try {
+            if (Files.isRegularFile(blob) && Files.size(blob) == Files.size(file)) {
+                if (!Files.isSameFile(blob, file)) {
+                    link(blob, file);
+                }
+            } else {
+                link(file, blob);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            Downloader.logger.log(Level.FINE, "Unable to deduplicate " + file, e);
+        }
+        return hex;
+    }
+
+    /**
+     * Removes the file with the given SHA-256 hash from the store unless there
+     * are still links to it. Where the number of links can't be determined
+     * the file is removed, cache entries linking to it keep their contents.
+     */
+    void release(String hex) {
+        if (!isValid(hex)) {
+            return;
+        }
+        Path blob = blob(hex);
+        try {
+            Object links = Files.getAttribute(blob, "unix:nlink");
+            if (links instanceof Integer && (Integer) links > 1) {
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            // No way to tell, so assume the caller knows it's no longer used
+        }
+        Util.deletePath(blob);
+    }
+
+    // Atomically makes "target" a link to "existing"
+    private static void link(Path existing, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".link");
+        try {
+            Files.createLink(tmp, existing);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Path blob(String hex) {
+        return storeDir.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    private static boolean isValid(String hex) {
+        return hex != null && hex.matches("[0-9a-f]{64}");
+    }
+
+    static byte[] digest(Path file) throws IOException {
+        MessageDigest md = Checksum.newDigest(ALGORITHM);
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+        }
+        return md.digest();
+    }
+}
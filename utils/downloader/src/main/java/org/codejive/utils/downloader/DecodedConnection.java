@@ -0,0 +1,166 @@
+package org.codejive.utils.downloader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * A view of a response with a "Content-Encoding" that returns the decoded
+ * content. Everything else is left to the actual connection, except for the
+ * content length, which is unknown for the decoded content. The headers
+ * keep saying how the content was encoded, so handlers can tell they aren't
+ * looking at the bytes that were sent, which matters for range requests.
+ */
+class DecodedConnection extends HttpURLConnection {
+    private final HttpURLConnection conn;
+    private final ContentDecoder decoder;
+    private InputStream in;
+
+    DecodedConnection(HttpURLConnection conn, ContentDecoder decoder) {
+        super(conn.getURL());
+        this.conn = conn;
+        this.decoder = decoder;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (in == null) {
+            in = decoder.decode(new CheckedInputStream(conn.getInputStream(), conn.getContentLengthLong()));
+        }
+        return in;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        InputStream err = conn.getErrorStream();
+        if (err != null) {
+            try {
+                return decoder.decode(err);
+            } catch (IOException e) {
+                // Error messages are only informational
+                Downloader.logger.log(Level.FINE, "Unable to decode error response", e);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        return -1;
+    }
+
+    @Override
+    public int getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public URL getURL() {
+        return conn.getURL();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        conn.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        conn.disconnect();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return conn.usingProxy();
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return conn.getResponseCode();
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return conn.getResponseMessage();
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return conn.getRequestMethod();
+    }
+
+    @Override
+    public String getRequestProperty(String key) {
+        return conn.getRequestProperty(key);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+        return conn.getRequestProperties();
+    }
+
+    @Override
+    public boolean getInstanceFollowRedirects() {
+        return conn.getInstanceFollowRedirects();
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        return conn.getHeaderField(name);
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        return conn.getHeaderField(n);
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        return conn.getHeaderFieldKey(n);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        return conn.getHeaderFields();
+    }
+
+    // Decoders don't necessarily notice the content was cut short, so we
+    // check the number of encoded bytes against the "Content-Length"
+    private static class CheckedInputStream extends FilterInputStream {
+        private final long length;
+        private long received;
+
+        CheckedInputStream(InputStream in, long length) {
+            super(in);
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            count(b < 0 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            count(n);
+            return n;
+        }
+
+        private void count(int n) throws IOException {
+            if (n >= 0) {
+                received += n;
+            } else if (length >= 0 && received < length) {
+                throw new IOException(String.format("Compressed content ended prematurely after %d of %d bytes",
+                        received, length));
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.codejive.utils.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Computes digests of downloaded content while it gets streamed to disk,
+ * so checking its integrity doesn't take an extra pass over the data.
+ * Handlers that write content call <code>restart()</code> when they start
+ * at the beginning of the file and pass the data through <code>wrap()</code>.
+ */
+class Digests {
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private Map<String, String> values;
+
+    Digests(String... algorithms) {
+        for (String algorithm : algorithms) {
+            if (algorithm != null) {
+                digests.computeIfAbsent(algorithm, Checksum::newDigest);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return digests.isEmpty();
+    }
+
+    void restart() {
+        digests.values().forEach(MessageDigest::reset);
+        values = null;
+    }
+
+    InputStream wrap(InputStream in) {
+        for (MessageDigest md : digests.values()) {
+            in = new DigestInputStream(in, md);
+        }
+        return in;
+    }
+
+    /**
+     * Adds the contents of the file starting at the given position, used for
+     * content that wasn't streamed in order, like the part of a download
+     * that is being resumed
+     */
+    void update(Path file, long from) throws IOException {
+        update(file, from, Long.MAX_VALUE);
+    }
+
+    /**
+     * Adds the contents of the file from the first position up to, but not
+     * including, the second one
+     */
+    void update(Path file, long from, long to) throws IOException {
+        if (isEmpty() || from >= to) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long pos = from;
+            int n;
+            while (pos < to) {
+                buf.limit((int) Math.min(buf.capacity(), to - pos));
+                if ((n = ch.read(buf, pos)) <= 0) {
+                    break;
+                }
+                pos += n;
+                buf.flip();
+                for (MessageDigest md : digests.values()) {
+                    md.update(buf.duplicate());
+                }
+                buf.clear();
+            }
+        }
+    }
+
+    void update(byte[] buf, int offset, int length) {
+        for (MessageDigest md : digests.values()) {
+            md.update(buf, offset, length);
+        }
+    }
+
+    /**
+     * Returns the hex value of the digest for the given algorithm, which
+     * completes the computation of all the digests
+     */
+    String value(String algorithm) {
+        if (values == null) {
+            values = new LinkedHashMap<>();
+            digests.forEach((alg, md) -> values.put(alg, Util.toHex(md.digest())));
+        }
+        return values.get(algorithm);
+    }
+
+    /**
+     * Returns all the digests in the form "sha256:hex,sha1:hex" or null if
+     * no digests are being computed
+     */
+    String values() {
+        if (isEmpty()) {
+            return null;
+        }
+        return digests.keySet().stream().map(alg -> alg + ":" + value(alg)).collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,150 @@
+package org.codejive.utils.downloader;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs downloads asynchronously while limiting the number of concurrent
+ * downloads, both globally and per host. Identical downloads that are
+ * submitted while one is already in flight share its result.
+ * <p>
+ * Downloads wait in a queue per host and only get handed to the executor
+ * once they can start, so waiting downloads don't occupy any threads, and
+ * downloads waiting for a busy host don't hold up those for other hosts.
+ */
+class DownloadScheduler {
+    private final ExecutorService executor = newExecutor();
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    // Guarded by "this"
+    private final Map<String, Host> hosts = new HashMap<>();
+    // The hosts with downloads that can start as soon as a global slot is free
+    private final ArrayDeque<Host> ready = new ArrayDeque<>();
+    private int running;
+
+    private static class Host {
+        final String name;
+        final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+        int running;
+        boolean isReady;
+
+        Host(String name) {
+            this.name = name;
+        }
+    }
+
+    DownloadScheduler(int maxConcurrent, int maxPerHost) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Schedules the given download
+     *
+     * @param key identifies the download, submissions with the same key that
+     *            overlap in time only result in a single download
+     * @param fileURL the URL being downloaded, used to determine the host
+     * @param download the code performing the actual download
+     * @return a future that completes with the result of the download
+     */
+    CompletableFuture<Path> submit(String key, String fileURL, Callable<Path> download) {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        CompletableFuture<Path> existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            return existing;
+        }
+        String hostName = hostOf(fileURL);
+        Runnable task = () -> {
+            try {
+                result.complete(download.call());
+            } catch (Throwable th) {
+                result.completeExceptionally(th);
+            } finally {
+                inFlight.remove(key, result);
+                finished(hostName);
+            }
+        };
+        synchronized (this) {
+            Host host = hosts.computeIfAbsent(hostName, Host::new);
+            host.pending.add(task);
+            markReady(host);
+            dispatch();
+        }
+        return result;
+    }
+
+    private synchronized void finished(String hostName) {
+        Host host = hosts.get(hostName);
+        running--;
+        host.running--;
+        if (host.running == 0 && host.pending.isEmpty()) {
+            hosts.remove(hostName);
+        } else {
+            markReady(host);
+        }
+        dispatch();
+    }
+
+    private void markReady(Host host) {
+        if (!host.isReady && !host.pending.isEmpty() && host.running < maxPerHost) {
+            host.isReady = true;
+            ready.add(host);
+        }
+    }
+
+    // Starts downloads, taking turns between the hosts, until either there
+    // are no global slots left or nothing else can start
+    private void dispatch() {
+        while (running < maxConcurrent && !ready.isEmpty()) {
+            Host host = ready.poll();
+            host.isReady = false;
+            Runnable task = host.pending.poll();
+            running++;
+            host.running++;
+            markReady(host);
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Returns the executor the downloads run on, which can be used for other
+     * work that is part of a download
+     */
+    ExecutorService executor() {
+        return executor;
+    }
+
+    private static String hostOf(String fileURL) {
+        try {
+            URL url = new URL(fileURL);
+            return url.getHost().toLowerCase(Locale.ROOT) + ":" + url.getPort();
+        } catch (MalformedURLException e) {
+            // The download itself will report this
+            return "";
+        }
+    }
+
+    // Uses virtual threads when running on a JVM that supports them
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "downloader");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
@@ -5,88 +5,654 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.nio.MappedByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 public class Downloader {
+    private final Path cacheDir;
+    private final CacheIndex index;
     private boolean offline;
     private boolean refresh;
     private long cacheEvictDuration;
+    private long maxStaleness;
+    private boolean cacheHeaders = true;
+    private int maxSegments = 1;
+    private long minSegmentSize = 8 * 1024 * 1024;
+    private boolean contentAddressed;
+    private boolean checksumFiles;
+    private boolean compression;
+    private final Map<String, ContentDecoder> contentDecoders = new LinkedHashMap<>();
     private String userAgent = DEFAULT_USERAGENT;
-    private Logger logger;
+    private int maxConcurrentDownloads = 16;
+    private int maxConcurrentDownloadsPerHost = 6;
+    private long maxCacheSize = Long.MAX_VALUE;
+    private int maxCacheEntries = Integer.MAX_VALUE;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private DownloadScheduler scheduler;
+    private MappedFiles mappedFiles = new MappedFiles(32 * 1024 * 1024, 1024 * 1024);
+    private ConnectionOpener opener = ConnectionOpener.urlConnection();
+
+    // Cache entries currently being downloaded by this downloader, used to
+    // make concurrent callers asking for the same entry share a single
+    // download. Downloaders can be configured differently, so they don't
+    // share results, the entry's lock already makes them wait for each other.
+    private final ConcurrentHashMap<Path, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    static final Logger logger = Logger.getLogger(Downloader.class.getName());
+
+    static final String PARTIAL_SUFFIX = ".part";
 
     public static final String DEFAULT_USERAGENT = Downloader.class.getName() + " v0.1 ("
             + System.getProperty("os.name") + " " + System.getProperty("os.version")
             + " " + System.getProperty("os.arch") + ")";
 
+    /**
+     * Determines which entries get removed first when the cache grows beyond
+     * its maximum size: the least recently used ones (LRU) or the least
+     * frequently used ones (LFU)
+     */
+    public enum EvictionPolicy {
+        LRU, LFU
+    }
+
+    /**
+     * Determines how HTTP requests get performed: using the JDK's
+     * <code>HttpURLConnection</code> (URL_CONNECTION) or its
+     * <code>HttpClient</code> (HTTP_CLIENT), which supports HTTP/2 and can
+     * send many concurrent requests to the same host over a single connection
+     */
+    public enum Transport {
+        URL_CONNECTION, HTTP_CLIENT
+    }
+
+    /**
+     * Creates a new downloader
+     *
+     * @param cacheDir the directory where <code>downloadAndCacheFile()</code> stores its files
+     */
+    public Downloader(Path cacheDir) {
+        this.cacheDir = cacheDir;
+        this.index = CacheIndex.forDir(cacheDir);
+    }
+
+    /**
+     * When offline no remote access is permitted and only cached files can be returned
+     */
+    public Downloader offline(boolean offline) {
+        this.offline = offline;
+        return this;
+    }
+
+    /**
+     * When refreshing cached files are always considered out-of-date and get downloaded again
+     */
+    public Downloader refresh(boolean refresh) {
+        this.refresh = refresh;
+        return this;
+    }
+
+    /**
+     * The number of seconds after which cached files need to be checked for changes.
+     * 0 means files always get checked while -1 means they never get checked.
+     * Files that came with caching headers use those instead, see <code>cacheHeaders()</code>.
+     */
+    public Downloader cacheEvictDuration(long cacheEvictDuration) {
+        this.cacheEvictDuration = cacheEvictDuration;
+        return this;
+    }
+
+    /**
+     * When enabled (the default) the "Cache-Control" and "Expires" headers sent
+     * by the server determine how long each cached file stays fresh, falling back
+     * to <code>cacheEvictDuration()</code> for files that came without them.
+     * Files marked "immutable" never get checked for changes. A
+     * <code>cacheEvictDuration</code> of -1 still means files never get checked.
+     */
+    public Downloader cacheHeaders(boolean cacheHeaders) {
+        this.cacheHeaders = cacheHeaders;
+        return this;
+    }
+
+    /**
+     * Enables stale-while-revalidate: cached files that need to be checked for
+     * changes, but did so for at most the given number of seconds, are returned
+     * immediately while the check is performed in the background. 0 (the default)
+     * means callers always wait for the check.
+     */
+    public Downloader staleWhileRevalidate(long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+        return this;
+    }
+
+    public Downloader userAgent(String userAgent) {
+        this.userAgent = userAgent;
+        return this;
+    }
+
+    /**
+     * Large files get downloaded into the cache using up to the given number
+     * of concurrent range requests, when the server supports them. Each of
+     * them will be for at least the given number of bytes. Defaults to a
+     * single request, which means files never get downloaded in segments.
+     */
+    public Downloader segmentedDownloads(int maxSegments, long minSegmentSize) {
+        this.maxSegments = maxSegments;
+        this.minSegmentSize = minSegmentSize;
+        return this;
+    }
+
+    /**
+     * When enabled cached files with the same contents, even when downloaded
+     * from different URLs, only take up disk space once. This is done by
+     * storing the files under the hash of their contents and linking the
+     * cache entries to them, so cached files must never be modified.
+     * Defaults to false.
+     */
+    public Downloader contentAddressed(boolean contentAddressed) {
+        this.contentAddressed = contentAddressed;
+        return this;
+    }
+
+    /**
+     * When enabled downloads that weren't given a checksum look for one in a
+     * ".sha256" or ".sha1" file next to the file being downloaded, and verify
+     * the file against it. This only happens when the file itself actually
+     * gets downloaded, not when the server says a cached file is unmodified.
+     * The digests of verified files are stored with their cache entries.
+     * Files without such a checksum file are downloaded without verification.
+     * Defaults to false.
+     */
+    public Downloader checksumFiles(boolean checksumFiles) {
+        this.checksumFiles = checksumFiles;
+        return this;
+    }
+
+    /**
+     * When enabled the server is asked to compress the content it sends, which
+     * it will do using gzip or any of the encodings added using
+     * <code>contentDecoder()</code>. The content gets decompressed while it's
+     * being downloaded, so files are stored exactly like they would be without
+     * compression. Compressed content can't be resumed or downloaded in
+     * segments, see <code>segmentedDownloads()</code>. Defaults to false.
+     */
+    public Downloader compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Adds support for another content encoding when compression is enabled,
+     * for example "br" or "zstd" using a decoder from a third-party library
+     *
+     * @param encoding the name of the encoding as used in the "Content-Encoding" header
+     * @param decoder the decoder for the encoding
+     */
+    public Downloader contentDecoder(String encoding, ContentDecoder decoder) {
+        this.contentDecoders.put(encoding.toLowerCase(Locale.ROOT), decoder);
+        return this;
+    }
+
+    /**
+     * The limits for the cached files that <code>downloadAndMapFile()</code>
+     * keeps mapped into memory between calls. Only the most recently used
+     * files of at most maxFileSize bytes are kept, up to a total of maxBytes.
+     * Defaults to 32 MB of files of at most 1 MB each.
+     */
+    public Downloader mappedFiles(long maxBytes, long maxFileSize) {
+        this.mappedFiles = new MappedFiles(maxBytes, maxFileSize);
+        return this;
+    }
+
+    /**
+     * The limits to apply to the number of concurrent downloads performed by
+     * <code>downloadAll()</code> and <code>downloadAllAndCache()</code>.
+     * Must be set before the first call to either of those methods.
+     */
+    public Downloader maxConcurrentDownloads(int global, int perHost) {
+        this.maxConcurrentDownloads = global;
+        this.maxConcurrentDownloadsPerHost = perHost;
+        return this;
+    }
+
+    /**
+     * The limits for the size of the cache. When a download makes the cache
+     * grow beyond them, entries get removed in the background according to
+     * the eviction policy until it's within its limits again.
+     * 0 or less means there is no limit.
+     */
+    public Downloader maxCacheSize(long maxBytes, int maxEntries) {
+        this.maxCacheSize = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.maxCacheEntries = maxEntries > 0 ? maxEntries : Integer.MAX_VALUE;
+        return this;
+    }
+
+    /**
+     * The policy used to select the entries to remove when the cache grows
+     * beyond its maximum size. Defaults to LRU.
+     */
+    public Downloader evictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    /**
+     * The transport used to perform HTTP requests. Defaults to URL_CONNECTION.
+     * All downloaders using HTTP_CLIENT share a client for each connect
+     * timeout, so downloads of many small files from the same host, like the
+     * ones performed by <code>downloadAllAndCache()</code>, get multiplexed
+     * over one connection when the server supports HTTP/2. Those clients
+     * don't use the keep-alive cache nor the default SSL settings of
+     * <code>HttpsURLConnection</code>.
+     */
+    public Downloader transport(Transport transport) {
+        this.opener = transport == Transport.HTTP_CLIENT
+                ? ConnectionOpener.httpClient()
+                : ConnectionOpener.urlConnection();
+        return this;
+    }
+
+    /**
+     * Returns statistics about the cache directory, including the amount
+     * of data that was evicted to keep it within its limits
+     */
+    public CacheStats cacheStats() throws IOException {
+        return index.stats();
+    }
+
     /**
      * Either retrieves a previously downloaded file from the cache or downloads a
-     * file from a URL and stores it in the cache.
+     * file from a URL and stores it in the cache. When several threads or
+     * processes ask for the same file at the same time only one of them will
+     * actually download it, the others wait for it to finish and use its result.
      *
      * @param fileURL HTTP URL of the file to be downloaded
      * @return Path to the downloaded file
      * @throws IOException
      */
     public Path downloadAndCacheFile(String fileURL) throws IOException {
+        // Fresh entries we already know about are served from memory, as long
+        // as another process didn't remove the file. Otherwise refresh() below
+        // drops the entry.
+        CacheIndex.Entry entry = index.get(fileURL);
+        if (entry != null && !isEvicted(entry) && Files.isRegularFile(entry.file)) {
+            logger.log(Level.FINE, String.format("Using cached file %s for remote %s", entry.file, fileURL));
+            index.accessed(fileURL, entry);
+            return entry.file;
+        }
         Path saveDir = getUrlCacheDir(fileURL);
-        Path metaSaveDir = getCacheMetaDir(saveDir);
-        Path cachedFile = getCachedFile(saveDir);
-        if (cachedFile == null || isEvicted(cachedFile)) {
-            return downloadFileAndCache(fileURL, saveDir, metaSaveDir, cachedFile);
+        if (entry != null && isUsableWhileStale(entry)) {
+            return useStaleEntry(fileURL, saveDir, entry);
+        }
+        boolean evicted;
+        // Make sure we don't look at the entry while another process is updating it
+        try (CacheLock lock = CacheLock.shared(saveDir)) {
+            entry = index.refresh(fileURL, saveDir);
+            evicted = entry == null || isEvicted(entry);
+        }
+        if (evicted && entry != null && isUsableWhileStale(entry)) {
+            return useStaleEntry(fileURL, saveDir, entry);
+        } else if (evicted) {
+            return singleFlight(saveDir, () -> downloadFileAndCacheLocked(fileURL, saveDir, null));
         } else {
-            logger.log(Level.FINE, String.format("Using cached file %s for remote %s", cachedFile, fileURL));
-            return saveDir.resolve(cachedFile);
+            logger.log(Level.FINE, String.format("Using cached file %s for remote %s", entry.file, fileURL));
+            index.accessed(fileURL, entry);
+            return entry.file;
+        }
+    }
+
+    /**
+     * Either retrieves a previously downloaded file with the given checksum
+     * from the cache or downloads it from a URL, verifying its checksum while
+     * it's being downloaded. A file with the expected checksum is used even
+     * when it would otherwise be checked for changes first. When content
+     * addressing is enabled and the checksum is a SHA-256 hash, a file with
+     * the same contents that was downloaded from a different URL is used
+     * without downloading anything.
+     *
+     * @param fileURL HTTP URL of the file to be downloaded
+     * @param checksum the expected checksum of the file, or null
+     * @return Path to the downloaded file
+     * @throws IOException if the file couldn't be downloaded or has a different checksum
+     */
+    public Path downloadAndCacheFile(String fileURL, Checksum checksum) throws IOException {
+        if (checksum == null) {
+            return downloadAndCacheFile(fileURL);
+        }
+        CacheIndex.Entry entry = index.get(fileURL);
+        if (!refresh && hasContents(entry, checksum) && Files.isRegularFile(entry.file)) {
+            logger.log(Level.FINE, String.format("Using cached file %s for remote %s", entry.file, fileURL));
+            index.accessed(fileURL, entry);
+            return entry.file;
+        }
+        Path saveDir = getUrlCacheDir(fileURL);
+        Path file = singleFlight(saveDir, () -> downloadFileAndCacheLocked(fileURL, saveDir, checksum));
+        entry = index.get(fileURL);
+        if (entry == null || !entry.file.equals(file) || !hasContents(entry, checksum)) {
+            // We shared a download that wasn't verified
+            file = downloadFileAndCacheLocked(fileURL, saveDir, checksum);
+        }
+        return file;
+    }
+
+    /**
+     * Performs <code>downloadAndCacheFile()</code> and returns the contents of
+     * the cached file as a read-only memory-mapped buffer. Small files stay
+     * mapped between calls (see <code>mappedFiles()</code>), so using them
+     * again doesn't require opening and reading the file. Each call returns a
+     * new buffer positioned at the start of the file.
+     * <p>
+     * On Windows a file can't be deleted while it's mapped, which means
+     * a cached file that was mapped can only be replaced or evicted once its
+     * buffers have been garbage collected.
+     * <p>
+     * A buffer can't hold 2 GB or more, larger files have to be read using
+     * the path returned by <code>downloadAndCacheFile()</code> instead.
+     *
+     * @param fileURL HTTP URL of the file to be downloaded
+     * @return the contents of the downloaded file
+     * @throws IOException if the file couldn't be downloaded or is 2 GB or larger
+     */
+    public MappedByteBuffer downloadAndMapFile(String fileURL) throws IOException {
+        Path file = downloadAndCacheFile(fileURL);
+        return mappedFiles.map(fileURL, index.get(fileURL), file);
+    }
+
+    private static boolean hasContents(CacheIndex.Entry entry, Checksum checksum) {
+        return entry != null && checksum.hex().equals(checksum.find(entry.digest));
+    }
+
+    /**
+     * Asynchronously performs <code>downloadAndCacheFile()</code> for all the
+     * given URLs, limiting the number of concurrent downloads as configured
+     * by <code>maxConcurrentDownloads()</code>.
+     *
+     * @param fileURLs HTTP URLs of the files to be downloaded
+     * @return Map of each URL to a future of the path of its downloaded file
+     */
+    public Map<String, CompletableFuture<Path>> downloadAllAndCache(Collection<String> fileURLs) {
+        Map<String, CompletableFuture<Path>> result = new LinkedHashMap<>();
+        for (String fileURL : fileURLs) {
+            result.computeIfAbsent(fileURL,
+                    u -> scheduler().submit("cache:" + u, u, () -> downloadAndCacheFile(u)));
         }
+        return result;
     }
 
-    // Returns true if the cached file doesn't exist or if its last
-    // modified time is longer ago than the configuration value
-    // indicated by "cache-evict" (defaults to "0" which will
-    // cause this method to always return "true").
-    private boolean isEvicted(Path cachedFile) {
+    /**
+     * Asynchronously performs <code>downloadFile()</code> for all the given
+     * URLs, limiting the number of concurrent downloads as configured by
+     * <code>maxConcurrentDownloads()</code>.
+     *
+     * @param fileURLs HTTP URLs of the files to be downloaded
+     * @param saveDir path of the directory to save the files
+     * @return Map of each URL to a future of the path of its downloaded file
+     */
+    public Map<String, CompletableFuture<Path>> downloadAll(Collection<String> fileURLs, Path saveDir) {
+        Map<String, CompletableFuture<Path>> result = new LinkedHashMap<>();
+        for (String fileURL : fileURLs) {
+            result.computeIfAbsent(fileURL,
+                    u -> scheduler().submit(saveDir.toAbsolutePath() + ":" + u, u, () -> downloadFile(u, saveDir)));
+        }
+        return result;
+    }
+
+    private synchronized DownloadScheduler scheduler() {
+        if (scheduler == null) {
+            scheduler = new DownloadScheduler(maxConcurrentDownloads, maxConcurrentDownloadsPerHost);
+        }
+        return scheduler;
+    }
+
+    // Returns a stable directory name for the given URL within the cache
+    Path getUrlCacheDir(String fileURL) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] hash = md.digest(fileURL.getBytes(StandardCharsets.UTF_8));
+            return cacheDir.resolve(Util.toHex(hash));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Path getCacheMetaDir(Path saveDir) {
+        return saveDir.getParent().resolve(saveDir.getFileName() + "-meta");
+    }
+
+    // Partially downloaded content is kept here so the download can be resumed
+    static Path getPartialDownloadDir(Path saveDir) {
+        return saveDir.getParent().resolve(saveDir.getFileName() + PARTIAL_SUFFIX);
+    }
+
+    // Returns the file stored in the given cache dir or null if there is none
+    static Path getCachedFile(Path saveDir) throws IOException {
+        if (!Files.isDirectory(saveDir)) {
+            return null;
+        }
+        try (Stream<Path> files = Files.list(saveDir)) {
+            return files.filter(Files::isRegularFile).findFirst().orElse(null);
+        }
+    }
+
+    // Returns true if the cached file is no longer fresh and needs to be
+    // checked for changes. How long an entry stays fresh is determined by
+    // the caching headers the server sent (if enabled and present) or
+    // otherwise by the configuration value indicated by "cache-evict"
+    // (defaults to "0" which will cause this method to always return "true").
+    private boolean isEvicted(CacheIndex.Entry entry) {
         if (offline) {
             return false;
         }
         if (refresh) {
             return true;
         }
-        if (Files.isRegularFile(cachedFile)) {
-            if (cacheEvictDuration == 0) {
-                return true;
-            } else if (cacheEvictDuration == -1) {
-                return false;
-            }
+        if (cacheEvictDuration == -1) {
+            return false;
+        }
+        return !Instant.now().isBefore(freshUntil(entry));
+    }
+
+    private Instant freshUntil(CacheIndex.Entry entry) {
+        if (cacheHeaders && entry.freshness.immutable) {
+            return Instant.MAX;
+        } else if (cacheHeaders && entry.freshness.maxAge >= 0) {
+            return entry.lastValidated.plusSeconds(entry.freshness.maxAge);
+        } else if (cacheEvictDuration == -1) {
+            return Instant.MAX;
+        } else {
+            return entry.lastValidated.plusSeconds(cacheEvictDuration);
+        }
+    }
+
+    // Returns true if the evicted entry may still be returned to the
+    // caller because it's within the allowed staleness
+    private boolean isUsableWhileStale(CacheIndex.Entry entry) {
+        if (maxStaleness <= 0 || refresh || !Files.isRegularFile(entry.file)) {
+            return false;
+        }
+        long staleness = Duration.between(freshUntil(entry), Instant.now()).getSeconds();
+        return staleness < maxStaleness;
+    }
+
+    private Path useStaleEntry(String fileURL, Path saveDir, CacheIndex.Entry entry) {
+        logger.log(Level.FINE, String.format("Using stale cached file %s for remote %s", entry.file, fileURL));
+        index.accessed(fileURL, entry);
+        scheduler().submit("revalidate:" + fileURL, fileURL,
+                () -> singleFlight(saveDir, () -> downloadFileAndCacheLocked(fileURL, saveDir, null)))
+                .whenComplete((p, th) -> {
+                    if (th != null) {
+                        logger.log(Level.FINE, "Unable to revalidate cached file for remote " + fileURL, th);
+                    }
+                });
+        return entry.file;
+    }
+
+    interface Download {
+        Path download() throws IOException;
+    }
+
+    // Runs the download unless another thread is already downloading the same
+    // cache entry, in which case we wait for that one and return its result
+    private Path singleFlight(Path saveDir, Download download) throws IOException {
+        Path key = saveDir.toAbsolutePath().normalize();
+        CompletableFuture<Path> mine = new CompletableFuture<>();
+        CompletableFuture<Path> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
             try {
-                Instant cachedLastModified = Files.getLastModifiedTime(cachedFile).toInstant();
-                Duration d = Duration.between(cachedLastModified, Instant.now());
-                return d.getSeconds() >= cacheEvictDuration;
-            } catch (IOException e) {
-                return true;
+                return existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for download of " + saveDir);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
             }
-        } else {
-            return true;
+        }
+        try {
+            Path result = download.download();
+            mine.complete(result);
+            return result;
+        } catch (Throwable th) {
+            mine.completeExceptionally(th);
+            throw th;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    // Downloads the file while holding the entry's exclusive lock, so other
+    // processes sharing the cache won't try to download it at the same time
+    // nor look at it while its folders are being swapped
+    private Path downloadFileAndCacheLocked(String fileURL, Path saveDir, Checksum checksum) throws IOException {
+        Instant waitStart = Instant.now();
+        try (CacheLock lock = CacheLock.exclusive(saveDir)) {
+            // Another process might have updated the entry while we were waiting
+            CacheIndex.Entry entry = index.refresh(fileURL, saveDir);
+            if (checksum != null) {
+                Path file = refresh ? null : findVerified(fileURL, saveDir, entry, checksum);
+                if (file != null) {
+                    return file;
+                }
+            } else if (entry != null && !refresh
+                    && (!isEvicted(entry) || !entry.lastValidated.isBefore(waitStart))) {
+                logger.log(Level.FINE, String.format("Using cached file %s for remote %s", entry.file, fileURL));
+                index.accessed(fileURL, entry);
+                return entry.file;
+            }
+            return downloadFileAndCache(fileURL, saveDir, entry, checksum);
+        } finally {
+            index.evictIfNeeded(maxCacheSize, maxCacheEntries, evictionPolicy);
         }
     }
 
-    private Path downloadFileAndCache(String fileURL, Path saveDir, Path metaSaveDir, Path cachedFile)
+    // Returns a cached file with the expected checksum, or null if there is none.
+    // Callers must hold the exclusive lock for saveDir.
+    private Path findVerified(String fileURL, Path saveDir, CacheIndex.Entry entry, Checksum checksum)
             throws IOException {
-        ConnectionConfigurator cfg = ConnectionConfigurator.all(
+        if (entry != null) {
+            if (checksum.find(entry.digest) == null) {
+                // Files that were downloaded without a checksum have to be read once
+                Digests digests = new Digests(checksum.algorithm());
+                digests.update(entry.file, 0);
+                entry = index.addDigests(fileURL, entry, digests.values());
+            }
+            if (hasContents(entry, checksum)) {
+                logger.log(Level.FINE, String.format("Using cached file %s for remote %s", entry.file, fileURL));
+                index.accessed(fileURL, entry);
+                return entry.file;
+            }
+        }
+        if (contentAddressed && checksum.algorithm().equals(ContentStore.ALGORITHM)) {
+            Path blob = index.store().get(checksum.hex());
+            if (blob != null) {
+                Util.deletePath(saveDir);
+                Path file = saveDir.resolve(fileNameFromURL(fileURL));
+                index.store().copy(blob, file);
+                index.putStored(fileURL, file, checksum.toString());
+                logger.log(Level.FINE, String.format("Using stored file %s for remote %s", blob, fileURL));
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private Path downloadFileAndCache(String fileURL, Path saveDir, CacheIndex.Entry entry, Checksum checksum)
+            throws IOException {
+        Path partDir = getPartialDownloadDir(saveDir);
+        String resumeETag = ResultHandler.resumableETag(partDir);
+        try {
+            return downloadFileAndCache(fileURL, saveDir, partDir, entry, checksum, resumeETag);
+        } catch (ResultHandler.ResumeNotPossibleException e) {
+            logger.log(Level.FINE, "Discarding partial download: " + e.getMessage());
+            Util.deletePath(partDir);
+            return downloadFileAndCache(fileURL, saveDir, partDir, entry, checksum, null);
+        } finally {
+            // Whatever was kept for resuming counts towards the size of the cache
+            index.partialDownload(partDir);
+        }
+    }
+
+    private Path downloadFileAndCache(String fileURL, Path saveDir, Path partDir, CacheIndex.Entry entry,
+            Checksum checksum, String resumeETag) throws IOException {
+        ConnectionConfigurator segmentCfg = ConnectionConfigurator.all(
                 ConnectionConfigurator.userAgent(userAgent),
                 ConnectionConfigurator.authentication(),
-                ConnectionConfigurator.timeout(null),
-                ConnectionConfigurator.cacheControl(cachedFile, metaSaveDir));
-        ResultHandler handler = ResultHandler.redirects(cfg,
-                ResultHandler.handleUnmodified(cachedFile,
-                        ResultHandler.throwOnError(
-                                ResultHandler.downloadToTempDir(saveDir, metaSaveDir,
-                                        ResultHandler::downloadTo))));
-        return connect(fileURL, cfg, handler);
+                ConnectionConfigurator.timeout(-1));
+        // A cached file with the wrong contents must not be declared unmodified
+        boolean conditional = !refresh && (checksum == null || hasContents(entry, checksum));
+        // Resuming only works with the content exactly as it was sent
+        Map<String, ContentDecoder> decoders = resumeETag == null ? decoders() : Collections.emptyMap();
+        ConnectionConfigurator cfg = ConnectionConfigurator.all(
+                segmentCfg,
+                ConnectionConfigurator.acceptEncoding(decoders.keySet()),
+                ConnectionConfigurator.cacheControl(conditional ? entry : null),
+                resumeETag != null
+                        ? ConnectionConfigurator.resume(Files.size(partDir.resolve(ResultHandler.PART_CONTENT)),
+                                resumeETag)
+                        : ConnectionConfigurator.all());
+        // The hash used by the content store gets computed along the way as well
+        Digests digests = newDigests(checksum, contentAddressed ? ContentStore.ALGORITHM : null);
+        ResultHandler.ChecksumSource expected = expectedChecksum(fileURL, checksum);
+        Function<Path, ResultHandler> download = d -> ResultHandler.verify(expected, digests,
+                ResultHandler.downloadSegmented(opener, segmentCfg, scheduler().executor(), maxSegments,
+                        minSegmentSize, d, digests,
+                        ResultHandler.downloadResumable(partDir, d, digests)));
+        ResultHandler handler = ResultHandler.redirects(opener, cfg,
+                ResultHandler.updateIndex(index, fileURL, digests,
+                        ResultHandler.handleUnmodified(conditional && entry != null ? entry.file : null,
+                                ResultHandler.checkResume(
+                                        ResultHandler.decode(decoders,
+                                                ResultHandler.throwOnError(
+                                                        ResultHandler.downloadToTempDir(saveDir, download)))))));
+        Path result = connect(fileURL, cfg, handler);
+        // Whatever got downloaded before is no longer needed
+        Util.deletePath(partDir);
+        if (contentAddressed) {
+            index.deduplicate(fileURL);
+        }
+        return result;
     }
 
     /**
@@ -101,6 +667,20 @@ public class Downloader {
         return downloadFile(fileURL, saveDir, -1);
     }
 
+    /**
+     * Downloads a file from a URL, verifying its checksum while it's being
+     * downloaded. If the checksum doesn't match the file gets removed.
+     *
+     * @param fileURL HTTP URL of the file to be downloaded
+     * @param saveDir path of the directory to save the file
+     * @param checksum the expected checksum of the file, or null
+     * @return Path to the downloaded file
+     * @throws IOException if the file couldn't be downloaded or has a different checksum
+     */
+    public Path downloadFile(String fileURL, Path saveDir, Checksum checksum) throws IOException {
+        return downloadFile(fileURL, saveDir, -1, checksum);
+    }
+
     /**
      * Downloads a file from a URL
      *
@@ -112,16 +692,92 @@ public class Downloader {
      * @throws IOException
      */
     public Path downloadFile(String fileURL, Path saveDir, Integer timeOut) throws IOException {
+        return downloadFile(fileURL, saveDir, timeOut, null);
+    }
+
+    private Path downloadFile(String fileURL, Path saveDir, Integer timeOut, Checksum checksum)
+            throws IOException {
+        Map<String, ContentDecoder> decoders = decoders();
         ConnectionConfigurator cfg = ConnectionConfigurator.all(
                 ConnectionConfigurator.userAgent(userAgent),
                 ConnectionConfigurator.authentication(),
-                ConnectionConfigurator.timeout(timeOut));
-        ResultHandler handler = ResultHandler.redirects(cfg,
-                ResultHandler.throwOnError(
-                        ResultHandler.downloadTo(saveDir, saveDir)));
+                ConnectionConfigurator.timeout(timeOut),
+                ConnectionConfigurator.acceptEncoding(decoders.keySet()));
+        Digests digests = newDigests(checksum, null);
+        ResultHandler handler = ResultHandler.redirects(opener, cfg,
+                ResultHandler.decode(decoders,
+                        ResultHandler.throwOnError(
+                                ResultHandler.verify(expectedChecksum(fileURL, checksum), digests,
+                                        ResultHandler.downloadTo(saveDir, saveDir, digests)))));
         return connect(fileURL, cfg, handler);
     }
 
+    // The decoders for the encodings we accept, in order of preference
+    private Map<String, ContentDecoder> decoders() {
+        if (!compression) {
+            return Collections.emptyMap();
+        }
+        Map<String, ContentDecoder> result = new LinkedHashMap<>(contentDecoders);
+        result.putIfAbsent("gzip", GZIPInputStream::new);
+        return result;
+    }
+
+    // The digests to compute while downloading, which must include any
+    // algorithm a checksum file might use when we don't have a checksum yet
+    private Digests newDigests(Checksum checksum, String algorithm) {
+        if (checksum == null && checksumFiles) {
+            return new Digests(Checksum.SHA256, Checksum.SHA1, algorithm);
+        }
+        return new Digests(checksum != null ? checksum.algorithm() : null, algorithm);
+    }
+
+    // The checksum to verify a downloaded file against, which gets
+    // looked up only once there is a downloaded file to verify
+    private ResultHandler.ChecksumSource expectedChecksum(String fileURL, Checksum checksum) {
+        if (checksum == null && checksumFiles) {
+            return () -> fetchChecksum(fileURL);
+        }
+        return () -> checksum;
+    }
+
+    // Looks for the checksum of a file in a ".sha256" or ".sha1" file next to it
+    private Checksum fetchChecksum(String fileURL) throws IOException {
+        for (String algorithm : new String[] { Checksum.SHA256, Checksum.SHA1 }) {
+            int p = fileURL.indexOf('?');
+            String checksumURL = p >= 0
+                    ? fileURL.substring(0, p) + "." + algorithm + fileURL.substring(p)
+                    : fileURL + "." + algorithm;
+            String[] text = new String[] { null };
+            ConnectionConfigurator cfg = ConnectionConfigurator.all(
+                    ConnectionConfigurator.userAgent(userAgent),
+                    ConnectionConfigurator.authentication(),
+                    ConnectionConfigurator.timeout(-1));
+            connect(checksumURL, cfg, ResultHandler.redirects(opener, cfg, conn -> {
+                if (!(conn instanceof HttpURLConnection) || ((HttpURLConnection) conn).getResponseCode() < 400) {
+                    try (InputStream in = conn.getInputStream()) {
+                        text[0] = new String(in.readNBytes(4096), StandardCharsets.UTF_8);
+                    } catch (FileNotFoundException e) {
+                        // Not all files have a checksum file, whatever the protocol
+                    }
+                }
+                return null;
+            }));
+            if (text[0] != null) {
+                // Either just the checksum or followed by the file name, like sha256sum writes them
+                Matcher m = Pattern.compile("\\b[0-9a-fA-F]{" + Checksum.hexLength(algorithm) + "}\\b").matcher(text[0]);
+                if (m.find()) {
+                    logger.log(Level.FINE, String.format("Using checksum from %s", checksumURL));
+                    return Checksum.of(algorithm, m.group());
+                }
+                // Servers and repository managers can answer with some other
+                // page instead of a 404, that's the same as not having one
+                logger.log(Level.FINE, String.format("No %s checksum found in %s", algorithm, checksumURL));
+            }
+        }
+        logger.log(Level.FINE, String.format("No checksum file found for %s", fileURL));
+        return null;
+    }
+
     static Path etagFile(Path cachedFile, Path metaSaveDir) {
         return metaSaveDir.resolve(cachedFile.getFileName() + ".etag");
     }
@@ -145,7 +801,7 @@ public class Downloader {
         }
 
         URL url = new URL(fileURL);
-        URLConnection urlConnection = url.openConnection();
+        URLConnection urlConnection = opener.open(url);
         configurator.configure(urlConnection);
 
         if (urlConnection instanceof HttpURLConnection) {
@@ -160,12 +816,26 @@ public class Downloader {
             return resultHandler.handle(urlConnection);
         } finally {
             if (urlConnection instanceof HttpURLConnection) {
-                ((HttpURLConnection) urlConnection).disconnect();
+                release((HttpURLConnection) urlConnection);
+            }
+        }
+    }
+
+    // Closes the response body without tearing down the connection, which
+    // lets the JDK drain any remaining data and put the socket back into its
+    // keep-alive cache. Only when that fails is the connection disconnected.
+    static void release(HttpURLConnection conn) {
+        try {
+            InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (in != null) {
+                in.close();
             }
+        } catch (IOException e) {
+            conn.disconnect();
         }
     }
 
-    private static String extractFileName(URLConnection urlConnection) throws IOException {
+    static String extractFileName(URLConnection urlConnection) throws IOException {
         String fileURL = urlConnection.getURL().toExternalForm();
         String fileName = "";
         if (urlConnection instanceof HttpURLConnection) {
@@ -181,13 +851,7 @@ public class Downloader {
             }
             if (Util.isBlankString(fileName)) {
                 // extracts file name from URL if nothing found
-                int p = fileURL.indexOf("?");
-                // Strip parameters from the URL (if any)
-                String simpleUrl = (p > 0) ? fileURL.substring(0, p) : fileURL;
-                while (simpleUrl.endsWith("/")) {
-                    simpleUrl = simpleUrl.substring(0, simpleUrl.length() - 1);
-                }
-                fileName = simpleUrl.substring(simpleUrl.lastIndexOf("/") + 1);
+                fileName = fileNameFromURL(fileURL);
             }
         } else {
             fileName = fileURL.substring(fileURL.lastIndexOf("/") + 1);
@@ -195,8 +859,18 @@ public class Downloader {
         return fileName;
     }
 
-    private HttpURLConnection handleRedirects(HttpURLConnection httpConn, ConnectionConfigurator configurator)
-            throws IOException {
+    static String fileNameFromURL(String fileURL) {
+        int p = fileURL.indexOf("?");
+        // Strip parameters from the URL (if any)
+        String simpleUrl = (p > 0) ? fileURL.substring(0, p) : fileURL;
+        while (simpleUrl.endsWith("/")) {
+            simpleUrl = simpleUrl.substring(0, simpleUrl.length() - 1);
+        }
+        return simpleUrl.substring(simpleUrl.lastIndexOf("/") + 1);
+    }
+
+    static HttpURLConnection handleRedirects(HttpURLConnection httpConn, ConnectionOpener opener,
+            ConnectionConfigurator configurator) throws IOException {
         int responseCode;
         int redirects = 0;
         while (true) {
@@ -216,9 +890,9 @@ public class Downloader {
                     throw new IOException("No 'Location' header in redirect");
                 }
                 URL url = new URL(httpConn.getURL(), location);
-                url = new URL(swizzleURL(url.toString()));
                 logger.log(Level.FINE, "Redirected to: " + url); // Should be debug info
-                httpConn = (HttpURLConnection) url.openConnection();
+                release(httpConn);
+                httpConn = (HttpURLConnection) opener.open(url);
                 if (responseCode == HttpURLConnection.HTTP_SEE_OTHER) {
                     // This response code forces the method to GET
                     httpConn.setRequestMethod("GET");
@@ -231,24 +905,6 @@ public class Downloader {
         return httpConn;
     }
 
-    private void addAuthHeaderIfNeeded(URLConnection urlConnection) {
-        String auth = null;
-        if (urlConnection.getURL().getHost().endsWith("github.com") && System.getenv().containsKey("GITHUB_TOKEN")) {
-            auth = "token " + System.getenv("GITHUB_TOKEN");
-        } else {
-            String username = System.getenv(JBANG_AUTH_BASIC_USERNAME);
-            String password = System.getenv(JBANG_AUTH_BASIC_PASSWORD);
-            if (username != null && password != null) {
-                String id = username + ":" + password;
-                String encodedId = Base64.getEncoder().encodeToString(id.getBytes(StandardCharsets.UTF_8));
-                auth = "Basic " + encodedId;
-            }
-        }
-        if (auth != null) {
-            urlConnection.setRequestProperty("Authorization", auth);
-        }
-    }
-
     public static String getDispositionFilename(String disposition) throws UnsupportedEncodingException {
         String fileName = "";
         int index1 = disposition.toLowerCase().lastIndexOf("filename=");
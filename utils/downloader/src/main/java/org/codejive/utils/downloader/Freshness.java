@@ -0,0 +1,105 @@
+package org.codejive.utils.downloader;
+
+import java.net.URLConnection;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * The freshness information a server sent along with a response using
+ * the "Cache-Control", "Expires", "Date" and "Age" headers.
+ */
+class Freshness {
+    // The number of seconds the response stays fresh after it was received,
+    // or -1 if the server didn't say
+    final long maxAge;
+    // The response will never change, so it doesn't need to be revalidated
+    final boolean immutable;
+
+    private static final long MAX_SECONDS = 1L << 31;
+
+    static final Freshness UNKNOWN = new Freshness(-1, false);
+
+    Freshness(long maxAge, boolean immutable) {
+        this.maxAge = maxAge;
+        this.immutable = immutable;
+    }
+
+    boolean isKnown() {
+        return maxAge >= 0 || immutable;
+    }
+
+    static Freshness of(URLConnection conn) {
+        long maxAge = -1;
+        boolean immutable = false;
+        boolean noCache = false;
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                String[] parts = directive.trim().split("=", 2);
+                String name = parts[0].trim().toLowerCase(Locale.ROOT);
+                if (name.equals("max-age") && parts.length == 2) {
+                    maxAge = parseSeconds(Downloader.unquote(parts[1].trim()));
+                } else if (name.equals("immutable")) {
+                    immutable = true;
+                } else if (name.equals("no-cache") || name.equals("no-store")) {
+                    noCache = true;
+                }
+            }
+        }
+        if (noCache) {
+            return new Freshness(0, false);
+        }
+        if (maxAge >= 0) {
+            // Take into account how long the response already spent in caches along the way
+            String age = conn.getHeaderField("Age");
+            if (age != null && age.trim().matches("\\d+")) {
+                maxAge = Math.max(0, maxAge - parseSeconds(age.trim()));
+            }
+        } else {
+            String expires = conn.getHeaderField("Expires");
+            if (expires != null) {
+                // Use the server's own clock to determine the lifetime
+                Instant exp = parseDate(expires);
+                Instant date = parseDate(conn.getHeaderField("Date"));
+                if (exp == null) {
+                    // Invalid dates, like "0", mean the response is already expired
+                    maxAge = 0;
+                } else {
+                    Instant base = date != null ? date : Instant.now();
+                    maxAge = Math.min(Math.max(0, exp.getEpochSecond() - base.getEpochSecond()), MAX_SECONDS);
+                }
+            }
+        }
+        if (maxAge < 0 && !immutable) {
+            return UNKNOWN;
+        }
+        return new Freshness(maxAge, immutable);
+    }
+
+    // Values too large to represent are treated as 2^31 like RFC 9111 says,
+    // while invalid values mean the response is stale
+    private static long parseSeconds(String value) {
+        if (!value.matches("\\d+")) {
+            return 0;
+        }
+        try {
+            return Math.min(Long.parseLong(value), MAX_SECONDS);
+        } catch (NumberFormatException e) {
+            return MAX_SECONDS;
+        }
+    }
+
+    private static Instant parseDate(String date) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
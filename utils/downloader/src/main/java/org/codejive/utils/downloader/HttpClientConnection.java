@@ -0,0 +1,237 @@
+package org.codejive.utils.downloader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Performs a request using <code>java.net.http.HttpClient</code> while
+ * looking like an <code>HttpURLConnection</code>, so it can be configured
+ * and handled like any other connection. The request gets sent the first
+ * time anything about the response is asked for. Unlike
+ * <code>HttpURLConnection</code> the client supports HTTP/2, which lets
+ * concurrent requests to the same host share a single connection.
+ * <p>
+ * Only GET requests are supported. Redirects get followed like
+ * <code>HttpURLConnection</code> does, unless that was turned off, but never
+ * to a different protocol. The read timeout only applies to receiving the
+ * response headers.
+ */
+class HttpClientConnection extends HttpURLConnection {
+    // The same limit HttpURLConnection uses by default
+    private static final int MAX_REDIRECTS = 20;
+
+    // The connect timeout is a setting of the client, so there is a client
+    // for each connect timeout that is used, all connections with the same
+    // timeout share theirs
+    private static final ConcurrentHashMap<Integer, HttpClient> clients = new ConcurrentHashMap<>();
+
+    private HttpResponse<InputStream> response;
+    // The header names and values, with the status line first like HttpURLConnection does
+    private List<String> headerKeys;
+    private List<String> headerValues;
+
+    HttpClientConnection(URL url) {
+        super(url);
+    }
+
+    private static HttpClient client(int connectTimeout) {
+        return clients.computeIfAbsent(connectTimeout, t -> {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NEVER);
+            if (t > 0) {
+                builder.connectTimeout(Duration.ofMillis(t));
+            }
+            // Use the same settings HttpURLConnection uses by default
+            ProxySelector proxySelector = ProxySelector.getDefault();
+            if (proxySelector != null) {
+                builder.proxy(proxySelector);
+            }
+            Authenticator authenticator = Authenticator.getDefault();
+            if (authenticator != null) {
+                builder.authenticator(authenticator);
+            }
+            return builder.build();
+        });
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (response != null) {
+            return;
+        }
+        if (!method.equals("GET")) {
+            throw new IOException("Unsupported request method " + method + " for " + url);
+        }
+        HttpResponse<InputStream> resp = send(url);
+        for (int redirects = 0; instanceFollowRedirects && isRedirect(resp.statusCode()); redirects++) {
+            Optional<String> location = resp.headers().firstValue("Location");
+            if (location.isEmpty()) {
+                break;
+            }
+            URL target = new URL(url, location.get());
+            if (!target.getProtocol().equalsIgnoreCase(url.getProtocol())) {
+                break;
+            }
+            if (redirects >= MAX_REDIRECTS) {
+                resp.body().close();
+                throw new ProtocolException("Server redirected too many times (" + MAX_REDIRECTS + ")");
+            }
+            resp.body().close();
+            url = target;
+            resp = send(url);
+        }
+        response = resp;
+        responseCode = response.statusCode();
+        headerKeys = new ArrayList<>();
+        headerValues = new ArrayList<>();
+        headerKeys.add(null);
+        headerValues.add((response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ") + responseCode);
+        response.headers().map().forEach((name, values) -> values.forEach(value -> {
+            headerKeys.add(name);
+            headerValues.add(value);
+        }));
+    }
+
+    private HttpResponse<InputStream> send(URL target) throws IOException {
+        HttpRequest.Builder request;
+        try {
+            request = HttpRequest.newBuilder(target.toURI()).GET();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL " + target, e);
+        }
+        for (Map.Entry<String, List<String>> header : getRequestProperties().entrySet()) {
+            for (String value : header.getValue()) {
+                request.header(header.getKey(), value);
+            }
+        }
+        if (getReadTimeout() > 0) {
+            request.timeout(Duration.ofMillis(getReadTimeout()));
+        }
+        try {
+            return client(getConnectTimeout()).send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + target);
+        } catch (IllegalArgumentException e) {
+            // Thrown for headers the client doesn't allow us to set
+            throw new IOException("Invalid request for " + target, e);
+        }
+    }
+
+    private static boolean isRedirect(int responseCode) {
+        return responseCode == HTTP_MULT_CHOICE
+                || responseCode == HTTP_MOVED_PERM
+                || responseCode == HTTP_MOVED_TEMP
+                || responseCode == HTTP_SEE_OTHER
+                || responseCode == 307 /* TEMP REDIRECT */
+                || responseCode == 308 /* PERM REDIRECT */;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        connect();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        // HTTP/2 doesn't have reason phrases
+        connect();
+        return null;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        if (responseCode >= 400) {
+            String message = "Server returned HTTP response code: " + responseCode + " for URL: " + url;
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(message);
+            }
+            throw new IOException(message);
+        }
+        return response.body();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return response != null && responseCode >= 400 ? response.body() : null;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        try {
+            connect();
+        } catch (IOException e) {
+            return null;
+        }
+        // Like HttpURLConnection we return the last value
+        List<String> values = response.headers().allValues(name);
+        return values.isEmpty() ? null : values.get(values.size() - 1);
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        try {
+            connect();
+        } catch (IOException e) {
+            return null;
+        }
+        return n < headerKeys.size() ? headerKeys.get(n) : null;
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        try {
+            connect();
+        } catch (IOException e) {
+            return null;
+        }
+        return n < headerValues.size() ? headerValues.get(n) : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            connect();
+        } catch (IOException e) {
+            return Map.of();
+        }
+        return response.headers().map();
+    }
+
+    @Override
+    public void disconnect() {
+        // Only gives up on this request, the client's connections stay open for other requests
+        if (response != null) {
+            try {
+                response.body().close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+package org.codejive.utils.downloader;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used small cached files mapped into memory, so
+ * using them again doesn't need any system calls. A mapping is only reused
+ * while the index still has the same entry for its URL, so files that were
+ * downloaded again get mapped again. Callers always get their own duplicate
+ * of a mapping, so they can't affect each other's position and limit.
+ */
+class MappedFiles {
+    private final long maxBytes;
+    private final long maxFileSize;
+    // In access order, so the first mapping is the least recently used one
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private static class Mapping {
+        final CacheIndex.Entry entry;
+        final MappedByteBuffer buffer;
+
+        Mapping(CacheIndex.Entry entry, MappedByteBuffer buffer) {
+            this.entry = entry;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * @param maxBytes the maximum total size of the files that are kept mapped
+     * @param maxFileSize files larger than this get mapped but not kept
+     */
+    MappedFiles(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Returns the contents of the cached file as a read-only buffer
+     *
+     * @param fileURL the URL of the cached file
+     * @param entry the current index entry for the URL or null if there is none
+     * @param file the cached file
+     * @throws IOException if the file can't be read or is too large for a buffer
+     */
+    MappedByteBuffer map(String fileURL, CacheIndex.Entry entry, Path file) throws IOException {
+        synchronized (this) {
+            Mapping mapping = mappings.get(fileURL);
+            if (mapping != null && mapping.entry == entry) {
+                return mapping.buffer.duplicate();
+            }
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Unable to map %s, files of %d bytes or more can't be mapped",
+                        file, (long) Integer.MAX_VALUE + 1));
+            }
+            // The mapping stays valid after the channel gets closed
+            buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (entry != null && entry.file.equals(file) && buffer.capacity() <= maxFileSize) {
+            put(fileURL, new Mapping(entry, buffer));
+        }
+        return buffer.duplicate();
+    }
+
+    private synchronized void put(String fileURL, Mapping mapping) {
+        Mapping old = mappings.put(fileURL, mapping);
+        size += mapping.buffer.capacity() - (old != null ? old.buffer.capacity() : 0);
+        // Mappings get unmapped by the garbage collector once nobody uses them anymore
+        Iterator<Map.Entry<String, Mapping>> it = mappings.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            size -= it.next().getValue().buffer.capacity();
+            it.remove();
+        }
+    }
+}
@@ -3,25 +3,50 @@ package org.codejive.utils.downloader;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URLConnection;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.time.ZonedDateTime;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
-import java.util.function.BiFunction;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 interface ResultHandler {
+    Pattern JSON_MESSAGE = Pattern.compile("\"message\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+    Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    // The names of the files in a partial download folder
+    String PART_CONTENT = "content";
+    String PART_ETAG = "etag";
 
     Path handle(URLConnection urlConnection) throws IOException;
 
-    static ResultHandler redirects(ConnectionConfigurator configurator, ResultHandler okHandler) {
+    interface ChecksumSource {
+        Checksum get() throws IOException;
+    }
+
+    static ResultHandler redirects(ConnectionOpener opener, ConnectionConfigurator configurator,
+            ResultHandler okHandler) {
         return conn -> {
             if (conn instanceof HttpURLConnection) {
-                conn = Downloader.handleRedirects((HttpURLConnection) conn, configurator);
+                HttpURLConnection redirected = Downloader.handleRedirects((HttpURLConnection) conn, opener,
+                        configurator);
+                if (redirected != conn) {
+                    // We opened this one so we're responsible for releasing it
+                    try {
+                        return okHandler.handle(redirected);
+                    } finally {
+                        Downloader.release(redirected);
+                    }
+                }
             }
             return okHandler.handle(conn);
         };
@@ -45,18 +70,14 @@ interface ResultHandler {
                                         Collectors.joining(
                                                 "\n"))
                                 .trim();
-                        verboseMsg("HTTP: " + responseCode + " - " + err);
+                        Downloader.logger.log(Level.FINE, "HTTP: " + responseCode + " - " + err);
                         if (err.startsWith("{") && err.endsWith("}")) {
-                            // Could be JSON, let's try to parse it
-                            try {
-                                Gson parser = new Gson();
-                                Map json = parser.fromJson(err, Map.class);
-                                // GitHub returns useful information in `message`,
-                                // if it's there we use it.
-                                // TODO add support for other known sites
-                                message = Objects.toString(json.get("message"));
-                            } catch (JsonSyntaxException ex) {
-                                // Not JSON it seems
+                            // Could be JSON, GitHub returns useful information
+                            // in `message`, if it's there we use it.
+                            // TODO add support for other known sites
+                            Matcher m = JSON_MESSAGE.matcher(err);
+                            if (m.find()) {
+                                message = m.group(1);
                             }
                         }
                     }
@@ -74,62 +95,257 @@ interface ResultHandler {
         };
     }
 
-    static ResultHandler downloadTo(Path saveDir, Path metaSaveDir) {
+    /**
+     * Passes responses with a "Content-Encoding" to the given handler as a
+     * connection that returns the decoded content. Encodings we didn't ask for
+     * are an error, unless we didn't ask for any, in which case the content is
+     * passed on as it was received like before.
+     */
+    static ResultHandler decode(Map<String, ContentDecoder> decoders, ResultHandler okHandler) {
+        return (conn) -> {
+            String encoding = conn.getHeaderField("Content-Encoding");
+            if (decoders.isEmpty() || encoding == null || encoding.trim().equalsIgnoreCase("identity")
+                    || !(conn instanceof HttpURLConnection)) {
+                return okHandler.handle(conn);
+            }
+            ContentDecoder decoder = decoders.get(encoding.trim().toLowerCase(Locale.ROOT));
+            if (decoder == null) {
+                throw new IOException(String.format("Unsupported Content-Encoding %s for URL: %s", encoding,
+                        conn.getURL().toExternalForm()));
+            }
+            Downloader.logger.log(Level.FINE, String.format("Decoding %s content of %s", encoding,
+                    conn.getURL().toExternalForm()));
+            return okHandler.handle(new DecodedConnection((HttpURLConnection) conn, decoder));
+        };
+    }
+
+    static ResultHandler downloadTo(Path saveDir, Digests digests) {
         return (conn) -> {
             // copy content from connection to file
             String fileName = Downloader.extractFileName(conn);
             Path file = saveDir.resolve(fileName);
             Files.createDirectories(saveDir);
-            Files.createDirectories(metaSaveDir);
-            try (ReadableByteChannel readableByteChannel = Channels.newChannel(conn.getInputStream());
-                 FileOutputStream fileOutputStream = new FileOutputStream(file.toFile())) {
-                fileOutputStream.getChannel().transferFrom(readableByteChannel, 0, Long.MAX_VALUE);
+            long length = conn.getContentLengthLong();
+            long received;
+            digests.restart();
+            try (InputStream in = digests.wrap(conn.getInputStream());
+                 FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                received = transfer(in, out, 0);
             }
+            checkComplete(conn, 0, received, length);
+            Downloader.logger.log(Level.FINE, String.format("Downloaded file %s", conn.getURL().toExternalForm()));
+            return file;
+        };
+    }
+
+    static ResultHandler downloadTo(Path saveDir, Path metaSaveDir, Digests digests) {
+        return (conn) -> {
+            Path file = downloadTo(saveDir, digests).handle(conn);
             // create an .etag file if the information is present in the response headers
             String etag = conn.getHeaderField("ETag");
             if (etag != null) {
+                Files.createDirectories(metaSaveDir);
                 Util.writeString(Downloader.etagFile(file, metaSaveDir), etag);
             }
-            verboseMsg(String.format("Downloaded file %s", conn.getURL().toExternalForm()));
             return file;
         };
     }
 
-    static ResultHandler downloadToTempDir(Path saveDir, Path metaSaveDir,
-                                           BiFunction<Path, Path, ResultHandler> downloader) {
+    /**
+     * Streams the content into a partial download folder, which is kept when
+     * anything goes wrong so the download can be resumed later. When the
+     * response is a "206 Partial Content" the content gets appended to what
+     * was downloaded before. Once complete the file gets moved to saveDir.
+     */
+    static ResultHandler downloadResumable(Path partDir, Path saveDir, Digests digests) {
+        return (conn) -> {
+            String fileName = Downloader.extractFileName(conn);
+            Path partFile = partDir.resolve(PART_CONTENT);
+            long offset = 0;
+            digests.restart();
+            if (conn instanceof HttpURLConnection
+                    && ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                offset = rangeStart(conn.getHeaderField("Content-Range"));
+                if (!Files.isRegularFile(partFile) || offset != Files.size(partFile)) {
+                    throw new ResumeNotPossibleException("Unexpected partial content for " + conn.getURL());
+                }
+                // Only the part we already have needs to be read back
+                digests.update(partFile, 0);
+                Downloader.logger.log(Level.FINE,
+                        String.format("Resuming download of %s at %d", conn.getURL().toExternalForm(), offset));
+            } else {
+                // Start over
+                Util.deletePath(partDir);
+                Files.createDirectories(partDir);
+                // Remember the version we're downloading, only strong ETags can be used to resume.
+                // Decoded content can't be resumed, we don't know where it is in the encoded content.
+                String etag = conn.getHeaderField("ETag");
+                if (etag != null && !etag.startsWith("W/") && conn.getHeaderField("Content-Encoding") == null) {
+                    Util.writeString(partDir.resolve(PART_ETAG), etag);
+                }
+            }
+            long length = conn.getContentLengthLong();
+            long received;
+            try (InputStream in = digests.wrap(conn.getInputStream());
+                 FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                received = transfer(in, out, offset);
+            }
+            checkComplete(conn, offset, received, length);
+            Files.createDirectories(saveDir);
+            Path file = saveDir.resolve(fileName);
+            Files.move(partFile, file);
+            Util.deletePath(partDir);
+            Downloader.logger.log(Level.FINE, String.format("Downloaded file %s", conn.getURL().toExternalForm()));
+            return file;
+        };
+    }
+
+    /**
+     * Downloads the content using several concurrent range requests when the
+     * server supports them and the file is large enough, otherwise the
+     * given handler is used
+     */
+    static ResultHandler downloadSegmented(ConnectionOpener opener, ConnectionConfigurator configurator,
+            ExecutorService executor, int maxSegments, long minSegmentSize, Path saveDir, Digests digests,
+            ResultHandler otherwise) {
+        return (conn) -> {
+            SegmentedDownload download = SegmentedDownload.of(conn, opener, configurator, executor, maxSegments,
+                    minSegmentSize);
+            if (download == null) {
+                return otherwise.handle(conn);
+            }
+            String fileName = Downloader.extractFileName(conn);
+            Path file = saveDir.resolve(fileName);
+            download.downloadTo(file, digests);
+            Downloader.logger.log(Level.FINE, String.format("Downloaded file %s", conn.getURL().toExternalForm()));
+            return file;
+        };
+    }
+
+    /**
+     * Compares the digest that was computed while the given handler downloaded
+     * the content with the expected checksum. When they don't match the file
+     * gets removed and an exception is thrown.
+     */
+    static ResultHandler verify(Checksum checksum, Digests digests, ResultHandler okHandler) {
+        if (checksum == null) {
+            return okHandler;
+        }
+        return verify(() -> checksum, digests, okHandler);
+    }
+
+    /**
+     * Like <code>verify()</code>, but the expected checksum is only looked up
+     * once the given handler has downloaded the content, so responses that
+     * don't have any content don't need the lookup. Nothing gets verified
+     * when the lookup returns null.
+     */
+    static ResultHandler verify(ChecksumSource source, Digests digests, ResultHandler okHandler) {
+        return (conn) -> {
+            Path file = okHandler.handle(conn);
+            Checksum checksum = source.get();
+            if (checksum == null) {
+                return file;
+            }
+            String actual = digests.value(checksum.algorithm());
+            if (!checksum.hex().equals(actual)) {
+                Files.deleteIfExists(file);
+                throw new IOException(String.format("Checksum mismatch for %s, expected %s but got %s:%s",
+                        conn.getURL().toExternalForm(), checksum, checksum.algorithm(), actual));
+            }
+            Downloader.logger.log(Level.FINE, String.format("Verified %s of %s", checksum,
+                    conn.getURL().toExternalForm()));
+            return file;
+        };
+    }
+
+    // Copies the stream to the file starting at the given position. Unlike
+    // FileChannel.transferFrom() this doesn't ignore errors that happen after
+    // some data was copied, like those of decoders noticing the content is incomplete.
+    static long transfer(InputStream in, FileChannel out, long position) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        long received = 0;
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+            while (bb.hasRemaining()) {
+                received += out.write(bb, position + received);
+            }
+        }
+        return received;
+    }
+
+    // The connection doesn't complain when it gets closed before all content was received
+    static void checkComplete(URLConnection conn, long offset, long received, long length) throws IOException {
+        if (length >= 0 && received < length) {
+            throw new IOException(String.format("Download of %s ended prematurely after %d of %d bytes",
+                    conn.getURL().toExternalForm(), offset + received, offset + length));
+        }
+    }
+
+    // Returns the ETag of the partially downloaded content in partDir or
+    // null if there is no partial download or it can't be resumed
+    static String resumableETag(Path partDir) {
+        Path partFile = partDir.resolve(PART_CONTENT);
+        Path etagFile = partDir.resolve(PART_ETAG);
+        try {
+            if (Files.isRegularFile(etagFile) && Files.isRegularFile(partFile) && Files.size(partFile) > 0) {
+                return Util.readString(etagFile);
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        return null;
+    }
+
+    // Returns the first byte position of a "Content-Range: bytes 100-199/200" header
+    static long rangeStart(String contentRange) throws IOException {
+        if (contentRange != null) {
+            Matcher m = CONTENT_RANGE.matcher(contentRange.trim());
+            if (m.matches()) {
+                return Long.parseLong(m.group(1));
+            }
+        }
+        throw new ResumeNotPossibleException("Invalid Content-Range: " + contentRange);
+    }
+
+    static ResultHandler checkResume(ResultHandler okHandler) {
+        return (conn) -> {
+            if (conn instanceof HttpURLConnection
+                    && ((HttpURLConnection) conn).getResponseCode() == 416 /* RANGE NOT SATISFIABLE */) {
+                throw new ResumeNotPossibleException("Unable to resume download of " + conn.getURL());
+            }
+            return okHandler.handle(conn);
+        };
+    }
+
+    // Callers must hold the exclusive <code>CacheLock</code> for <code>saveDir</code>,
+    // otherwise processes sharing the cache could remove each other's folders
+    static ResultHandler downloadToTempDir(Path saveDir, Function<Path, ResultHandler> downloader) {
         return (conn) -> {
             // create a temp directory for the downloaded content
             Path saveTmpDir = saveDir.getParent().resolve(saveDir.getFileName() + ".tmp");
             Path saveOldDir = saveDir.getParent().resolve(saveDir.getFileName() + ".old");
-            Path metaTmpDir = metaSaveDir.getParent().resolve(metaSaveDir.getFileName() + ".tmp");
-            Path metaOldDir = metaSaveDir.getParent().resolve(metaSaveDir.getFileName() + ".old");
             try {
                 Util.deletePath(saveTmpDir);
                 Util.deletePath(saveOldDir);
-                Util.deletePath(metaTmpDir);
-                Util.deletePath(metaOldDir);
 
-                Path saveFilePath = downloader.apply(saveTmpDir, metaTmpDir).handle(conn);
+                Path saveFilePath = downloader.apply(saveTmpDir).handle(conn);
 
                 // temporarily save the old content
                 if (Files.isDirectory(saveDir)) {
                     Files.move(saveDir, saveOldDir);
                 }
-                if (Files.isDirectory(metaSaveDir)) {
-                    Files.move(metaSaveDir, metaOldDir);
-                }
                 // rename the folder to its final name
                 Files.move(saveTmpDir, saveDir);
-                Files.move(metaTmpDir, metaSaveDir);
                 // remove any old content
                 Util.deletePath(saveOldDir);
-                Util.deletePath(metaOldDir);
 
                 return saveDir.resolve(saveFilePath.getFileName());
             } catch (Throwable th) {
                 // remove the temp folder if anything went wrong
                 Util.deletePath(saveTmpDir);
-                Util.deletePath(metaTmpDir);
                 // and move the old content back if it exists
                 if (!Files.isDirectory(saveDir) && Files.isDirectory(saveOldDir)) {
                     try {
@@ -138,25 +354,27 @@ interface ResultHandler {
                         // Ignore
                     }
                 }
-                if (!Files.isDirectory(metaSaveDir) && Files.isDirectory(metaOldDir)) {
-                    try {
-                        Files.move(metaOldDir, metaSaveDir);
-                    } catch (IOException ex) {
-                        // Ignore
-                    }
-                }
                 throw th;
             }
         };
     }
 
+    static ResultHandler updateIndex(CacheIndex index, String fileURL, Digests digests, ResultHandler okHandler) {
+        return (conn) -> {
+            Path file = okHandler.handle(conn);
+            index.update(fileURL, file, conn, digests.values());
+            return file;
+        };
+    }
+
     static ResultHandler handleUnmodified(Path cachedFile, ResultHandler okHandler) {
         if (cachedFile != null) {
             return (conn) -> {
                 if (conn instanceof HttpURLConnection) {
                     HttpURLConnection httpConn = (HttpURLConnection) conn;
                     if (httpConn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
-                        verboseMsg(String.format("Not modified, using cached file %s for remote %s", cachedFile,
+                        Downloader.logger.log(Level.FINE, String.format(
+                                "Not modified, using cached file %s for remote %s", cachedFile,
                                 conn.getURL().toExternalForm()));
                         // Update cached file's last modified time
                         try {
@@ -169,7 +387,7 @@ interface ResultHandler {
                             // that, so we'll just ignore it. It does mean that files affected by this will
                             // be
                             // re-downloaded every time.
-                            verboseMsg("Unable to set last-modified time for " + cachedFile, e);
+                            Downloader.logger.log(Level.FINE, "Unable to set last-modified time for " + cachedFile, e);
                         }
                         return cachedFile;
                     }
@@ -180,4 +398,16 @@ interface ResultHandler {
             return okHandler;
         }
     }
+
+    /**
+     * Thrown when a partial download can't be resumed, it should be
+     * discarded and the download started over
+     */
+    class ResumeNotPossibleException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ResumeNotPossibleException(String message) {
+            super(message);
+        }
+    }
 }
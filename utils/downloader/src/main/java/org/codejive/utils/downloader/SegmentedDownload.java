@@ -0,0 +1,251 @@
+package org.codejive.utils.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Downloads a file by fetching several byte ranges of it at the same time,
+ * each over its own connection, writing them directly to their position
+ * in the target file. The first range is read from the response that was
+ * already received, so no extra request is needed to find out whether
+ * the server supports ranges.
+ * <p>
+ * The digests get computed while the segments are being downloaded. Data
+ * that arrives in order is added straight from the buffers it was read
+ * into, only data of a segment that arrived before the segments preceding
+ * it were complete needs to be read back from the file, which happens as
+ * soon as those are complete.
+ */
+class SegmentedDownload {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final URLConnection conn;
+    private final ConnectionOpener opener;
+    private final ConnectionConfigurator configurator;
+    private final ExecutorService executor;
+    private final long length;
+    private final String validator;
+    private final long segmentSize;
+    // The error that made the download fail, if any
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    // The position up to which each segment has been written, guarded by "this"
+    private final long[] written;
+    // The position up to which the digests have been updated, guarded by "this"
+    private long digested;
+    // Set while a thread is updating the digests, guarded by "this"
+    private boolean digesting;
+    private Path file;
+    private Digests digests;
+
+    private SegmentedDownload(URLConnection conn, ConnectionOpener opener, ConnectionConfigurator configurator,
+            ExecutorService executor, long length, String validator, long segmentSize) {
+        this.conn = conn;
+        this.opener = opener;
+        this.configurator = configurator;
+        this.executor = executor;
+        this.length = length;
+        this.validator = validator;
+        this.segmentSize = segmentSize;
+        this.written = new long[(int) ((length + segmentSize - 1) / segmentSize)];
+        for (int i = 0; i < written.length; i++) {
+            written[i] = i * segmentSize;
+        }
+    }
+
+    /**
+     * Returns a segmented download for the given response, or null if it
+     * can't or shouldn't be downloaded in segments
+     *
+     * @param conn the response to the initial request for the whole file
+     * @param opener used to open the connections for the other segments
+     * @param configurator used to configure the connections for the other segments
+     * @param executor runs the downloads of the other segments
+     * @param maxSegments the maximum number of segments to use
+     * @param minSegmentSize the minimum size in bytes of a segment
+     */
+    static SegmentedDownload of(URLConnection conn, ConnectionOpener opener, ConnectionConfigurator configurator,
+            ExecutorService executor, int maxSegments, long minSegmentSize) throws IOException {
+        if (maxSegments < 2 || !(conn instanceof HttpURLConnection)) {
+            return null;
+        }
+        HttpURLConnection httpConn = (HttpURLConnection) conn;
+        String acceptRanges = httpConn.getHeaderField("Accept-Ranges");
+        long length = httpConn.getContentLengthLong();
+        // Ranges of encoded content can't be decoded separately
+        if (httpConn.getResponseCode() != HttpURLConnection.HTTP_OK
+                || httpConn.getHeaderField("Content-Encoding") != null
+                || acceptRanges == null || !acceptRanges.toLowerCase(Locale.ROOT).contains("bytes")
+                || length < 2 * minSegmentSize) {
+            return null;
+        }
+        // All segments need to come from the same version of the file
+        String validator = httpConn.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = httpConn.getHeaderField("Last-Modified");
+        }
+        if (validator == null) {
+            return null;
+        }
+        long segments = Math.min(maxSegments, length / Math.max(1, minSegmentSize));
+        long segmentSize = (length + segments - 1) / segments;
+        return new SegmentedDownload(conn, opener, configurator, executor, length, validator, segmentSize);
+    }
+
+    /**
+     * Downloads all segments into the given file, which will be created or
+     * overwritten, while updating the given digests. If anything goes wrong
+     * the file will be incomplete.
+     */
+    void downloadTo(Path file, Digests digests) throws IOException {
+        this.file = file;
+        this.digests = digests;
+        digests.restart();
+        Files.createDirectories(file.getParent());
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Reserve the space for the entire file
+            out.write(ByteBuffer.allocate(1), length - 1);
+            List<Future<Void>> futures = new ArrayList<>();
+            for (long start = segmentSize; start < length; start += segmentSize) {
+                long from = start;
+                long to = Math.min(start + segmentSize, length) - 1;
+                futures.add(executor.submit(() -> {
+                    try {
+                        downloadSegment(out, from, to);
+                    } catch (IOException e) {
+                        fail(e);
+                    } catch (RuntimeException e) {
+                        fail(new IOException(e));
+                    }
+                    return null;
+                }));
+            }
+            Downloader.logger.log(Level.FINE, String.format("Downloading %s in %d segments of %d bytes",
+                    conn.getURL().toExternalForm(), futures.size() + 1, segmentSize));
+            try {
+                // The first segment comes from the response we already have
+                copy(conn.getInputStream(), out, 0, segmentSize - 1);
+                // We don't want the rest of the response
+                ((HttpURLConnection) conn).disconnect();
+            } catch (IOException e) {
+                fail(e);
+            }
+            for (Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(new InterruptedIOException("Interrupted while downloading segments"));
+                } catch (ExecutionException e) {
+                    fail(new IOException(e.getCause()));
+                }
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+    }
+
+    private void downloadSegment(FileChannel out, long from, long to) throws IOException {
+        URL url = conn.getURL();
+        HttpURLConnection segConn = (HttpURLConnection) opener.open(url);
+        try {
+            configurator.configure(segConn);
+            segConn.setRequestProperty("Range", "bytes=" + from + "-" + to);
+            segConn.setRequestProperty("If-Range", validator);
+            if (segConn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+                    || ResultHandler.rangeStart(segConn.getHeaderField("Content-Range")) != from) {
+                throw new IOException("Server didn't return the requested range " + from + "-" + to + " of " + url
+                        + ", the file might have changed");
+            }
+            copy(segConn.getInputStream(), out, from, to);
+        } finally {
+            Downloader.release(segConn);
+        }
+    }
+
+    // Remembers the first error, which also makes the other segments stop
+    private void fail(IOException e) {
+        failure.compareAndSet(null, e);
+    }
+
+    // Copies the given range from the stream to the file, the stream
+    // is expected to start at the beginning of the range
+    private void copy(InputStream in, FileChannel out, long from, long to) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long pos = from;
+        while (pos <= to) {
+            if (failure.get() != null) {
+                throw new IOException("Download cancelled because another segment failed");
+            }
+            int n = in.read(buf, 0, (int) Math.min(buf.length, to - pos + 1));
+            if (n < 0) {
+                throw new IOException(String.format("Download of %s ended prematurely at %d of %d bytes",
+                        conn.getURL().toExternalForm(), pos, to + 1));
+            }
+            long start = pos;
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+            while (bb.hasRemaining()) {
+                pos += out.write(bb, pos);
+            }
+            digest(start, buf, n);
+        }
+    }
+
+    // Updates the digests with everything that can now be added in order,
+    // given that the buffer was just written to the file at the given
+    // position. Only one thread at a time does this, for all segments.
+    private void digest(long start, byte[] buf, int n) throws IOException {
+        if (digests.isEmpty()) {
+            return;
+        }
+        long end = start + n;
+        synchronized (this) {
+            written[(int) (start / segmentSize)] = end;
+            if (digesting) {
+                return;
+            }
+            digesting = true;
+        }
+        while (true) {
+            long from;
+            long to;
+            synchronized (this) {
+                from = digested;
+                to = from < length ? written[(int) (from / segmentSize)] : from;
+                if (to <= from) {
+                    digesting = false;
+                    return;
+                }
+            }
+            if (to == end) {
+                // What we just wrote is still in the buffer
+                digests.update(file, from, start);
+                int offset = (int) Math.max(0, from - start);
+                digests.update(buf, offset, n - offset);
+            } else {
+                digests.update(file, from, to);
+            }
+            synchronized (this) {
+                digested = to;
+            }
+        }
+    }
+}
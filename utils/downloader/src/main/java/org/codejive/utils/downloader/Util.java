@@ -1,12 +1,17 @@
 package org.codejive.utils.downloader;
 
 import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.util.Base64;
 import java.util.Comparator;
 
 public class Util {
+    static final String JBANG_AUTH_BASIC_USERNAME = "JBANG_AUTH_BASIC_USERNAME";
+    static final String JBANG_AUTH_BASIC_PASSWORD = "JBANG_AUTH_BASIC_PASSWORD";
 
     /**
      * Java 8 approximate version of Java 11 Files.readString()
@@ -50,4 +55,29 @@ public class Util {
         return err[0] == null;
     }
 
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    static void addAuthHeaderIfNeeded(URLConnection urlConnection) {
+        String auth = null;
+        if (urlConnection.getURL().getHost().endsWith("github.com") && System.getenv().containsKey("GITHUB_TOKEN")) {
+            auth = "token " + System.getenv("GITHUB_TOKEN");
+        } else {
+            String username = System.getenv(JBANG_AUTH_BASIC_USERNAME);
+            String password = System.getenv(JBANG_AUTH_BASIC_PASSWORD);
+            if (username != null && password != null) {
+                String id = username + ":" + password;
+                String encodedId = Base64.getEncoder().encodeToString(id.getBytes(StandardCharsets.UTF_8));
+                auth = "Basic " + encodedId;
+            }
+        }
+        if (auth != null) {
+            urlConnection.setRequestProperty("Authorization", auth);
+        }
+    }
 }